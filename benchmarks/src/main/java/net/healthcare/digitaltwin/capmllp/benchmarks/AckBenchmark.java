@@ -0,0 +1,92 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.AcknowledgmentCode;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+import net.healthcare.digitaltwin.capmllp.AckBuilder;
+import net.healthcare.digitaltwin.capmllp.Acknowledgement;
+
+// ACK generation the way the receiver used to do it (parse the MSH segment, generateACK, encode)
+// against the template in AckBuilder. Setup fails if the two differ anywhere but the timestamp
+// and the generated control ID, so a HAPI upgrade that changes the ACK layout is caught here.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class AckBenchmark {
+    private static final String REASON = "Receiver overloaded - retry later";
+
+    @Param({"ADT_A01_SMALL", "ORU_R01_SMALL"})
+    public Corpus corpus;
+
+    private PipeParser parser;
+    private AckBuilder builder;
+    private byte[] frame;
+    private int mshLength;
+
+    @Setup
+    public void setUp() throws Exception {
+        HapiContext hapi = new DefaultHapiContext();
+        hapi.setValidationContext(ValidationContextFactory.noValidation());
+        parser = hapi.getPipeParser();
+        builder = new AckBuilder(parser);
+        frame = corpus.frame();
+        mshLength = AckBuilder.mshLength(frame);
+
+        Message request = parser.parse(new String(frame, 0, mshLength, StandardCharsets.ISO_8859_1));
+        check("AA", request.generateACK().encode(), builder.accept(frame, mshLength));
+        check("AR", request.generateACK(AcknowledgmentCode.AR, new HL7Exception(REASON)).encode(),
+            builder.reject(frame, mshLength, REASON));
+    }
+
+    private static void check(String code, String expected, Acknowledgement actual) {
+        if (!withoutGenerated(expected).equals(withoutGenerated(actual.getText()))) {
+            throw new IllegalStateException(code + " from the template differs from HAPI:\n  " + expected.replace('\r', '\n')
+                + "\n  " + actual.getText().replace('\r', '\n'));
+        }
+    }
+
+    // MSH-7 (now) and MSH-10 (next ID) differ between any two ACKs
+    private static String withoutGenerated(String ack) {
+        String[] segments = ack.split("\r", -1);
+        String[] fields = segments[0].split("\\|", -1);
+        if (fields.length > 9) {
+            fields[6] = "";
+            fields[9] = "";
+        }
+        segments[0] = String.join("|", fields);
+        return String.join("\r", segments);
+    }
+
+    @Benchmark
+    public String hapi() throws Exception {
+        Message request = parser.parse(new String(frame, 0, mshLength, StandardCharsets.ISO_8859_1));
+        return request.generateACK().encode();
+    }
+
+    @Benchmark
+    public Acknowledgement template() throws Exception {
+        return builder.accept(frame, mshLength);
+    }
+}
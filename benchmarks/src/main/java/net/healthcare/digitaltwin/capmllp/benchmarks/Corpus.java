@@ -0,0 +1,93 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+// HL7 test messages in the shapes the lab sends: a plain admission, an admission with long
+// allergy/diagnosis/next-of-kin lists, a short and a long results report, and a results report
+// carrying the signed report as a base64 PDF in an ED observation. Large variants are built
+// from the checked-in templates so the repository only holds the small ones.
+public enum Corpus {
+    ADT_A01_SMALL,
+    ADT_A01_LARGE,
+    ORU_R01_SMALL,
+    ORU_R01_LARGE,
+    ORU_R01_PDF;
+
+    private static final int PDF_BYTES = 256 * 1024;
+
+    private String text;
+
+    public synchronized String text() {
+        if (text == null) {
+            text = build();
+        }
+        return text;
+    }
+
+    public byte[] frame() {
+        return text().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private String build() {
+        switch (this) {
+            case ADT_A01_SMALL:
+                return load("adt_a01.hl7");
+            case ADT_A01_LARGE: {
+                StringBuilder message = new StringBuilder(load("adt_a01.hl7"));
+                for (int i = 2; i <= 6; i++) {
+                    message.append("NK1|").append(i).append("|Nguyen^Contact").append(i)
+                        .append("^^^Mr|OTH^Other|42 Harbour Street^^Sydney^NSW^2000^AU|^PRN^PH^^61^2^9234567").append(i)
+                        .append('\r');
+                }
+                for (int i = 2; i <= 25; i++) {
+                    message.append("AL1|").append(i).append("|DA|ALG").append(i).append("^Allergen ").append(i)
+                        .append("^LOCAL|MO|Rash and urticaria\r");
+                }
+                for (int i = 2; i <= 40; i++) {
+                    message.append("DG1|").append(i).append("||I25.").append(i % 10)
+                        .append("^Chronic ischaemic heart disease^I10||20240315|W\r");
+                }
+                return message.toString();
+            }
+            case ORU_R01_SMALL:
+                return load("oru_r01.hl7");
+            case ORU_R01_LARGE: {
+                StringBuilder message = new StringBuilder(load("oru_r01.hl7"));
+                for (int i = 6; i <= 300; i++) {
+                    message.append("OBX|").append(i).append("|NM|").append(1000 + i).append("-0^Analyte ").append(i)
+                        .append("^LN||").append(i % 97).append(".4|mmol/L|1.0-99.0||||F|||20240315101500\r");
+                }
+                return message.toString();
+            }
+            case ORU_R01_PDF: {
+                // Incompressible body behind a PDF header, like a scanned report
+                byte[] pdf = new byte[PDF_BYTES];
+                new Random(42).nextBytes(pdf);
+                byte[] header = "%PDF-1.4\n".getBytes(StandardCharsets.ISO_8859_1);
+                System.arraycopy(header, 0, pdf, 0, header.length);
+                return load("oru_r01.hl7") + "OBX|6|ED|PDF^Histopathology report^LOCAL||^application^pdf^Base64^"
+                    + Base64.getEncoder().encodeToString(pdf) + "||||||F|||20240315101500\r";
+            }
+            default:
+                throw new IllegalStateException("Unknown corpus " + this);
+        }
+    }
+
+    // Templates are stored one segment per line; HL7 separates segments with CR.
+    private static String load(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing corpus resource " + name);
+            }
+            String text = new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+            return text.replace("\r\n", "\r").replace('\n', '\r');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
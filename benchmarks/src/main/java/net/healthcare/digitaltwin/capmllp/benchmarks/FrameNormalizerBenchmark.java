@@ -0,0 +1,50 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.healthcare.digitaltwin.capmllp.FrameNormalizer;
+
+// The byte-level MSH fix-ups the receiver applies to every frame before parsing.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class FrameNormalizerBenchmark {
+    @Param({"ADT_A01_SMALL", "ADT_A01_LARGE", "ORU_R01_SMALL", "ORU_R01_LARGE", "ORU_R01_PDF"})
+    public Corpus corpus;
+
+    @Param({"MSH-12:first-component", "MSH-12:first-component,line-endings"})
+    public String fixups;
+
+    private FrameNormalizer normalizer;
+    private byte[] original;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        normalizer = new FrameNormalizer(fixups);
+        original = corpus.frame();
+        frame = new byte[original.length];
+    }
+
+    @Benchmark
+    public int normalize() {
+        // Normalization works in place, so every operation starts from a fresh copy
+        System.arraycopy(original, 0, frame, 0, original.length);
+        return normalizer.normalize(frame, frame.length);
+    }
+}
@@ -0,0 +1,112 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+import net.healthcare.digitaltwin.capmllp.Acknowledgement;
+import net.healthcare.digitaltwin.capmllp.HL7Handler;
+import net.healthcare.digitaltwin.capmllp.HL7Header;
+import net.healthcare.digitaltwin.capmllp.KafkaCircuitBreaker;
+
+// HL7Handler end to end with Kafka replaced by LocalKafka: the full-parse path (parse, then
+// receive with its Terser lookups, the template ACK and the two Kafka sends) and the
+// header-only fast path. The publish mode follows KAFKA_PUBLISH_MODE as in production.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class HL7HandlerBenchmark {
+    @Param({"ADT_A01_SMALL", "ADT_A01_LARGE", "ORU_R01_SMALL", "ORU_R01_LARGE", "ORU_R01_PDF"})
+    public Corpus corpus;
+
+    private LocalKafka kafka;
+    private CamelContext camel;
+    private HL7Handler handler;
+    private Path outageDir;
+    private PipeParser parser;
+    private String text;
+    private byte[] frame;
+    private Message parsed;
+
+    @Setup
+    public void setUp() throws Exception {
+        kafka = new LocalKafka(0);
+        camel = new DefaultCamelContext();
+        camel.addComponent("kafka", kafka.createComponent());
+        camel.start();
+        outageDir = Files.createTempDirectory("hl7-handler-bench");
+        handler = new HL7Handler(camel, outageDir.toString(), new KafkaCircuitBreaker(null));
+
+        HapiContext hapi = new DefaultHapiContext();
+        hapi.setValidationContext(ValidationContextFactory.noValidation());
+        parser = hapi.getPipeParser();
+        text = corpus.text();
+        frame = corpus.frame();
+        parsed = parser.parse(text);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        handler.close();
+        camel.stop();
+        kafka.close();
+        try (Stream<Path> files = Files.walk(outageDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Message parse() throws Exception {
+        return parser.parse(text);
+    }
+
+    @Benchmark
+    public Acknowledgement processMessage() throws Exception {
+        return handler.receive(parsed, metadata());
+    }
+
+    @Benchmark
+    public Acknowledgement parseAndProcess() throws Exception {
+        return handler.receive(parser.parse(text), metadata());
+    }
+
+    // What the receiver passes along with the parsed message
+    private Map<String, Object> metadata() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put(HL7Handler.RAW_MESSAGE, frame);
+        return metadata;
+    }
+
+    @Benchmark
+    public Acknowledgement processFrame() throws Exception {
+        return handler.processFrame(frame, HL7Header.extract(frame, frame.length));
+    }
+}
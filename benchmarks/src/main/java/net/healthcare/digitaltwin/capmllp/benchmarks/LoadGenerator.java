@@ -0,0 +1,289 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import net.healthcare.digitaltwin.capmllp.KafkaCircuitBreaker;
+import net.healthcare.digitaltwin.capmllp.LatencyHistogram;
+import net.healthcare.digitaltwin.capmllp.Receiver;
+
+// Drives sustained MLLP traffic at the ingress and reports ACK round-trip latency. Each
+// connection runs on its own virtual thread and keeps one message outstanding, as analysers do.
+// With --rate the load is open loop: sends are scheduled at fixed intervals and latency is
+// measured from the scheduled time, so a stalled server shows up as latency rather than as
+// fewer sends. Without it every connection sends again as soon as its ACK arrives.
+//
+// --local starts the Receiver in this JVM against LocalKafka, so the whole
+// Receiver -> HL7Handler -> Kafka path can be soak-tested on one machine.
+public final class LoadGenerator {
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Options options;
+    private final List<MessageTemplate> templates = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder nacks = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    private LoadGenerator(Options options) throws IOException {
+        this.options = options;
+        for (String name : options.corpora) {
+            Path file = Paths.get(name);
+            if (Files.isRegularFile(file)) {
+                String text = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+                templates.add(new MessageTemplate(name, text.replace("\r\n", "\r").replace('\n', '\r')));
+            } else {
+                templates.add(new MessageTemplate(name, Corpus.valueOf(name).text()));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        LocalKafka kafka = null;
+        CamelContext camel = null;
+        Receiver receiver = null;
+        Path outageDir = null;
+        if (options.local) {
+            kafka = new LocalKafka(options.kafkaLatencyMs);
+            camel = new DefaultCamelContext();
+            camel.addComponent("kafka", kafka.createComponent());
+            outageDir = Files.createTempDirectory("mllp-soak");
+            receiver = new Receiver(camel, outageDir + "/", new KafkaCircuitBreaker(null));
+            camel.addRoutes(receiver);
+            camel.start();
+            System.out.println("Local ingress started with LocalKafka (latency " + options.kafkaLatencyMs + " ms), outage dir "
+                + outageDir);
+        }
+
+        try {
+            LoadGenerator generator = new LoadGenerator(options);
+            String report = generator.run(kafka);
+            System.out.println(report);
+            if (options.report != null) {
+                try (Writer writer = Files.newBufferedWriter(Paths.get(options.report), StandardCharsets.UTF_8)) {
+                    writer.write(report);
+                }
+                System.out.println("Report written to " + options.report);
+            }
+        } finally {
+            if (camel != null) {
+                camel.stop();
+                receiver.getHandler().close();
+                kafka.close();
+            }
+        }
+    }
+
+    private String run(LocalKafka kafka) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(options.connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < options.connections; i++) {
+            int connection = i;
+            Thread.ofVirtual().name("mllp-load-" + i).start(() -> {
+                try {
+                    drive(connection, start);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        sleepUntil(warmupEnd);
+        long recordStart = System.nanoTime();
+        long kafkaAtStart = kafka != null ? kafka.getRecords() : 0;
+        recording = true;
+        long nextProgress = recordStart + PROGRESS_INTERVAL_NANOS;
+        while (System.nanoTime() < end) {
+            sleepUntil(Math.min(end, nextProgress));
+            if (System.nanoTime() >= nextProgress) {
+                double elapsed = (System.nanoTime() - recordStart) / 1e9;
+                System.out.printf(Locale.ROOT, "%6.0fs  %10d acked  %8.1f msg/s  p99 %.2f ms  nacks %d  errors %d%n",
+                    elapsed, acked.sum(), acked.sum() / elapsed, latency.getValueAtPercentile(99) / 1e6, nacks.sum(),
+                    errors.sum());
+                nextProgress += PROGRESS_INTERVAL_NANOS;
+            }
+        }
+        recording = false;
+        double elapsedSeconds = (System.nanoTime() - recordStart) / 1e9;
+        running = false;
+        done.await(options.timeoutMs + 1000L, TimeUnit.MILLISECONDS);
+        return report(elapsedSeconds, kafka != null ? kafka.getRecords() - kafkaAtStart : -1);
+    }
+
+    private void drive(int connection, long start) {
+        // Open loop: this connection's share of the target rate, offset so connections interleave
+        long intervalNanos = options.rate > 0 ? (long) (1e9 * options.connections / options.rate) : 0;
+        long intended = start + (intervalNanos > 0 ? intervalNanos * connection / options.connections : 0);
+        int next = connection;
+        MllpClient client = null;
+        while (running) {
+            if (intervalNanos > 0) {
+                sleepUntil(intended);
+            }
+            long sentAt = intervalNanos > 0 ? intended : System.nanoTime();
+            MessageTemplate template = templates.get(next++ % templates.size());
+            long id = sequence.incrementAndGet();
+            byte[] message = template.render("LG" + id, "LGP" + (id % options.patients));
+            try {
+                if (client == null) {
+                    client = new MllpClient(options.host, options.port, options.timeoutMs);
+                }
+                client.send(message);
+                client.receive();
+                if (recording) {
+                    latency.record(System.nanoTime() - sentAt);
+                    String code = client.acknowledgementCode();
+                    if ("AA".equals(code) || "CA".equals(code)) {
+                        acked.increment();
+                    } else {
+                        nacks.increment();
+                    }
+                }
+            } catch (IOException e) {
+                if (recording) {
+                    errors.increment();
+                }
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+                // The listener refuses connections beyond its consumer limit; do not spin on it
+                sleepUntil(System.nanoTime() + RECONNECT_DELAY_NANOS);
+            }
+            intended += intervalNanos;
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    private String report(double elapsedSeconds, long kafkaRecords) {
+        long ok = acked.sum();
+        long negative = nacks.sum();
+        long failed = errors.sum();
+        long total = ok + negative + failed;
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\n");
+        field(json, "mode", options.rate > 0 ? "open-loop" : "closed-loop", false);
+        field(json, "target", options.local ? "local" : options.host + ":" + options.port, false);
+        field(json, "connections", options.connections, false);
+        field(json, "targetRatePerSecond", options.rate, false);
+        field(json, "corpora", String.join(",", options.corpora), false);
+        field(json, "durationSeconds", round(elapsedSeconds), false);
+        field(json, "messages", total, false);
+        field(json, "acked", ok, false);
+        field(json, "nacks", negative, false);
+        field(json, "errors", failed, false);
+        field(json, "throughputPerSecond", round(ok / elapsedSeconds), false);
+        field(json, "nackRate", round(total == 0 ? 0 : (double) negative / total), false);
+        field(json, "errorRate", round(total == 0 ? 0 : (double) failed / total), false);
+        if (kafkaRecords >= 0) {
+            field(json, "kafkaRecords", kafkaRecords, false);
+        }
+        json.append("  \"latencyMs\": {\n");
+        json.append("    \"p50\": ").append(millis(50)).append(",\n");
+        json.append("    \"p90\": ").append(millis(90)).append(",\n");
+        json.append("    \"p99\": ").append(millis(99)).append(",\n");
+        json.append("    \"p999\": ").append(millis(99.9)).append(",\n");
+        json.append("    \"max\": ").append(millis(100)).append('\n');
+        json.append("  }\n}");
+        return json.toString();
+    }
+
+    private String millis(double percentile) {
+        return round(latency.getValueAtPercentile(percentile) / 1e6);
+    }
+
+    private static void field(StringBuilder json, String name, Object value, boolean last) {
+        json.append("  \"").append(name).append("\": ");
+        if (value instanceof String && !isNumber((String) value)) {
+            json.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else {
+            json.append(value);
+        }
+        json.append(last ? "\n" : ",\n");
+    }
+
+    private static boolean isNumber(String value) {
+        return value.matches("-?\\d+(\\.\\d+)?");
+    }
+
+    private static String round(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static final class Options {
+        String host = "localhost";
+        int port = 2575;
+        int connections = 4; // camel-mllp accepts 5 concurrent connections by default
+        double rate;
+        int durationSeconds = 60;
+        int warmupSeconds = 10;
+        int timeoutMs = 30_000;
+        int patients = 10_000;
+        List<String> corpora = List.of("ADT_A01_SMALL", "ORU_R01_SMALL");
+        String report;
+        boolean local;
+        long kafkaLatencyMs = 2;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--host": options.host = args[++i]; break;
+                    case "--port": options.port = Integer.parseInt(args[++i]); break;
+                    case "--connections": options.connections = Integer.parseInt(args[++i]); break;
+                    case "--rate": options.rate = Double.parseDouble(args[++i]); break;
+                    case "--duration": options.durationSeconds = Integer.parseInt(args[++i]); break;
+                    case "--warmup": options.warmupSeconds = Integer.parseInt(args[++i]); break;
+                    case "--timeout-ms": options.timeoutMs = Integer.parseInt(args[++i]); break;
+                    case "--patients": options.patients = Integer.parseInt(args[++i]); break;
+                    case "--corpus": options.corpora = List.of(args[++i].split(",")); break;
+                    case "--report": options.report = args[++i]; break;
+                    case "--local": options.local = true; break;
+                    case "--kafka-latency-ms": options.kafkaLatencyMs = Long.parseLong(args[++i]); break;
+                    default:
+                        System.err.println("Unknown option " + arg);
+                        System.err.println("Options: --host --port --connections --rate --duration --warmup --timeout-ms"
+                            + " --patients --corpus NAME|FILE[,...] --report FILE --local --kafka-latency-ms");
+                        System.exit(2);
+                }
+            }
+            if (options.local) {
+                options.host = "localhost";
+                options.port = 2575; // the Receiver's listening port
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.camel.component.kafka.DefaultKafkaClientFactory;
+import org.apache.camel.component.kafka.KafkaComponent;
+import org.apache.camel.component.kafka.KafkaConfiguration;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.Serializer;
+
+// In-process stand-in for the Kafka cluster. The service keeps its real Camel kafka component and
+// producer; only the client underneath is replaced by one that acknowledges every record locally,
+// optionally after a fixed broker latency. Nothing is retained, so it can run for hours.
+public final class LocalKafka implements AutoCloseable {
+    private static final int CLEAR_EVERY = 10_000;
+
+    private final long latencyMs;
+    private final LongAdder records = new LongAdder();
+    private final ScheduledExecutorService delays;
+
+    public LocalKafka(long latencyMs) {
+        this.latencyMs = latencyMs;
+        this.delays = latencyMs > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "local-kafka-broker");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public KafkaComponent createComponent() {
+        KafkaComponent kafka = new KafkaComponent();
+        KafkaConfiguration config = new KafkaConfiguration();
+        config.setBrokers("local:9092");
+        kafka.setConfiguration(config);
+        kafka.setKafkaClientFactory(new DefaultKafkaClientFactory() {
+            @Override
+            public Producer getProducer(Properties props) {
+                return new LocalProducer();
+            }
+
+            @Override
+            public String getBrokers(KafkaConfiguration configuration) {
+                return "local:9092";
+            }
+        });
+        return kafka;
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @Override
+    public void close() {
+        if (delays != null) {
+            delays.shutdownNow();
+        }
+    }
+
+    private final class LocalProducer extends MockProducer<Object, Object> {
+        private int sinceClear;
+
+        LocalProducer() {
+            super(true, noSerialization(), noSerialization());
+        }
+
+        @Override
+        public synchronized Future<RecordMetadata> send(ProducerRecord<Object, Object> record, Callback callback) {
+            records.increment();
+            if (++sinceClear >= CLEAR_EVERY) {
+                clear();
+                sinceClear = 0;
+            }
+            if (delays == null) {
+                return super.send(record, callback);
+            }
+            Future<RecordMetadata> sent = super.send(record, null);
+            CompletableFuture<RecordMetadata> acknowledged = new CompletableFuture<>();
+            delays.schedule(() -> {
+                try {
+                    RecordMetadata metadata = sent.get();
+                    acknowledged.complete(metadata);
+                    if (callback != null) {
+                        callback.onCompletion(metadata, null);
+                    }
+                } catch (Exception e) {
+                    acknowledged.completeExceptionally(e);
+                    if (callback != null) {
+                        callback.onCompletion(null, e);
+                    }
+                }
+            }, latencyMs, TimeUnit.MILLISECONDS);
+            return acknowledged;
+        }
+    }
+
+    private static Serializer<Object> noSerialization() {
+        return (topic, data) -> null;
+    }
+}
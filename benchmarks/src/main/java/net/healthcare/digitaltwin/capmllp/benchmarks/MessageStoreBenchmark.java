@@ -0,0 +1,104 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.healthcare.digitaltwin.capmllp.MessageStore;
+import net.healthcare.digitaltwin.capmllp.OutageCodec;
+import net.healthcare.digitaltwin.capmllp.OutageLog;
+
+// Outage-store writes: OutageLog.append for each mmap/fsync combination, and MessageStore.save as
+// the handler calls it (configured from the OUTAGE_* environment). Run with -t to see the group
+// commit amortize fsync across threads. Sealed segments are deleted after every iteration so long
+// runs do not fill the disk.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class MessageStoreBenchmark {
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    @Param({"ADT_A01_SMALL", "ORU_R01_LARGE", "ORU_R01_PDF"})
+    public Corpus corpus;
+
+    @Param({"false", "true"})
+    public boolean mmap;
+
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    @Param({"NONE", "LZ4", "ZSTD"})
+    public OutageCodec compression;
+
+    private Path directory;
+    private OutageLog log;
+    private MessageStore store;
+    private byte[] message;
+    private byte[] ack;
+    private String messageText;
+    private String ackText;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("outage-bench");
+        log = new OutageLog(directory.resolve("log"), SEGMENT_BYTES, mmap, fsync, compression, 0, 0,
+            OutageLog.QuotaPolicy.REJECT);
+        store = new MessageStore(directory.resolve("store").toString());
+        messageText = corpus.text();
+        ackText = "MSH|^~\\&|DIGITALTWIN|SITEA|CAPLIS|CAPPATH|20240315101544.123+1100||ACK^R01|7|P|2.4\rMSA|AA|CP1\r";
+        message = corpus.frame();
+        ack = ackText.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reclaim() throws IOException {
+        for (OutageLog outageLog : new OutageLog[] {log, store.getOutageLog()}) {
+            outageLog.seal();
+            for (Path segment : outageLog.sealedSegments()) {
+                outageLog.markConsumed(segment);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        log.append("AIP-34728", "8003608166690503", message, ack);
+    }
+
+    @Benchmark
+    public boolean save() {
+        return store.save("AIP-34728", "8003608166690503", messageText, ackText);
+    }
+}
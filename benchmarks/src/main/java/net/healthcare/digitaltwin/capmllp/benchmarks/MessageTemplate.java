@@ -0,0 +1,60 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+// A corpus message with MSH-10 and the first PID-3 component replaced per send, so every
+// generated message has its own control ID and traffic spreads over a set of patients.
+final class MessageTemplate {
+    private final String name;
+    private final String head;   // up to MSH-10
+    private final String middle; // MSH-10 to the PID-3 value
+    private final String tail;   // after the PID-3 value
+
+    MessageTemplate(String name, String text) {
+        this.name = name;
+        int msh10 = fieldStart(text, 0, 10);
+        int msh10End = fieldEnd(text, msh10);
+        int pid = text.indexOf("\rPID|");
+        if (msh10 < 0 || pid < 0) {
+            throw new IllegalArgumentException(name + " needs MSH-10 and a PID segment");
+        }
+        int pid3 = fieldStart(text, pid + 1, 3);
+        int pid3End = pid3;
+        while (pid3End < text.length() && "^~|\r".indexOf(text.charAt(pid3End)) < 0) {
+            pid3End++;
+        }
+        head = text.substring(0, msh10);
+        middle = text.substring(msh10End, pid3);
+        tail = text.substring(pid3End);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    byte[] render(String controlId, String patientId) {
+        return (head + controlId + middle + patientId + tail).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Start of field n of the segment beginning at segmentStart (MSH counts its field separator as MSH-1).
+    private static int fieldStart(String text, int segmentStart, int n) {
+        int position = segmentStart + 3;
+        int pipes = text.startsWith("MSH", segmentStart) ? n - 1 : n;
+        for (int i = 0; i < pipes; i++) {
+            position = text.indexOf('|', position);
+            if (position < 0) {
+                return -1;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private static int fieldEnd(String text, int start) {
+        int end = start;
+        while (end < text.length() && text.charAt(end) != '|' && text.charAt(end) != '\r') {
+            end++;
+        }
+        return end;
+    }
+}
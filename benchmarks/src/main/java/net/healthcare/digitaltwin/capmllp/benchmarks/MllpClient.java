@@ -0,0 +1,87 @@
+package net.healthcare.digitaltwin.capmllp.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One blocking MLLP connection: writes a framed message and reads the framed reply.
+final class MllpClient implements AutoCloseable {
+    private static final int START_BLOCK = 0x0b;
+    private static final int END_BLOCK = 0x1c;
+    private static final int CARRIAGE_RETURN = 0x0d;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private byte[] reply = new byte[1024];
+    private int replyLength;
+
+    MllpClient(String host, int port, int timeoutMs) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeoutMs);
+        socket.connect(new InetSocketAddress(host, port), timeoutMs);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+    }
+
+    void send(byte[] message) throws IOException {
+        out.write(START_BLOCK);
+        out.write(message);
+        out.write(END_BLOCK);
+        out.write(CARRIAGE_RETURN);
+        out.flush();
+    }
+
+    // Reads one reply frame; the content stays in an internal buffer until the next call.
+    void receive() throws IOException {
+        int b;
+        while ((b = in.read()) != START_BLOCK) {
+            if (b < 0) {
+                throw new EOFException("Connection closed before acknowledgement");
+            }
+        }
+        replyLength = 0;
+        while (true) {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed inside acknowledgement");
+            }
+            if (b == END_BLOCK) {
+                in.read(); // trailing CR
+                return;
+            }
+            if (replyLength == reply.length) {
+                reply = Arrays.copyOf(reply, reply.length * 2);
+            }
+            reply[replyLength++] = (byte) b;
+        }
+    }
+
+    // MSA-1 of the last reply (AA, AE, AR, CA, CE or CR), or null when there is none.
+    String acknowledgementCode() {
+        for (int i = 0; i + 6 < replyLength; i++) {
+            boolean segmentStart = i == 0 || reply[i - 1] == CARRIAGE_RETURN || reply[i - 1] == '\n';
+            if (segmentStart && reply[i] == 'M' && reply[i + 1] == 'S' && reply[i + 2] == 'A' && reply[i + 3] == '|') {
+                return new String(reply, i + 4, 2, StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import ca.uhn.hl7v2.AcknowledgmentCode;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.util.idgenerator.IDGenerator;
+
+// Builds ACKs by filling a fixed template from the request's MSH bytes instead of parsing the
+// header and calling generateACK. The output is what HAPI 2.5.1 produces for a v2.4 request
+// (AbstractMessage.fillResponseHeader plus HL7Exception.populateResponse for AR):
+//   MSH|^~\&|<MSH-5>|<MSH-6>|<MSH-3>|<MSH-4>|<now>||ACK^<MSH-9-2>|<new id>|<MSH-11>|<MSH-12>
+//   MSA|<code>|<MSH-10>[|<text>]
+//   ERR|^^^207&Application internal error&HL70357&&<reason>             (AR only)
+// with the same control ID generator as the parser. Requests the template does not cover (other
+// versions, escape sequences in the copied fields, separators in the text) go through HAPI.
+public final class AckBuilder {
+    private static final String VERSION = "2.4";
+    private static final String INTERNAL_ERROR = "Application internal error";
+    private static final byte[] ERR_PREFIX = ascii("^^^207&" + INTERNAL_ERROR + "&HL70357&&");
+    private static final int FIELDS = 12; // MSH-1..MSH-12 are all the template reads
+
+    private final PipeParser parser;
+    private final IDGenerator ids;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[512]);
+    private final ThreadLocal<int[]> fieldBounds = ThreadLocal.withInitial(() -> new int[2 * (FIELDS + 1)]);
+    private volatile Clock clock = new Clock(Long.MIN_VALUE, null, null);
+
+    public AckBuilder(PipeParser parser) {
+        this.parser = parser;
+        this.ids = parser.getParserConfiguration().getIdGenerator();
+    }
+
+    // Length of the MSH segment at the start of the frame, excluding its terminator.
+    public static int mshLength(byte[] frame) {
+        int end = 0;
+        while (end < frame.length && frame[end] != '\r' && frame[end] != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    public Acknowledgement accept(byte[] frame, int mshLength) throws HL7Exception {
+        return build(frame, mshLength, AcknowledgmentCode.AA, null, null);
+    }
+
+    // AE with the text in MSA-3 and no ERR segment.
+    public Acknowledgement error(byte[] frame, int mshLength, String text) throws HL7Exception {
+        return build(frame, mshLength, AcknowledgmentCode.AE, text, null);
+    }
+
+    // AR for a message that was refused; the sender is expected to resend it later.
+    public Acknowledgement reject(byte[] frame, int mshLength, String reason) throws HL7Exception {
+        return build(frame, mshLength, AcknowledgmentCode.AR, null, reason);
+    }
+
+    private Acknowledgement build(byte[] frame, int mshLength, AcknowledgmentCode code, String text, String reason)
+            throws HL7Exception {
+        long start = System.nanoTime();
+        try {
+            Charset charset = HL7Header.charsetOf(frame, mshLength);
+            byte[] ack = fill(frame, mshLength, code, text, reason);
+            if (ack != null) {
+                return new Acknowledgement(ack, charset);
+            }
+            Message request = parser.parse(new String(frame, 0, mshLength, charset));
+            Message response = request.generateACK(code, reason != null ? new HL7Exception(reason) : null);
+            if (text != null) {
+                Terser.set((Segment) response.get("MSA"), 3, 0, 1, 1, text);
+            }
+            return Acknowledgement.of(response, charset);
+        } catch (IOException e) {
+            throw new HL7Exception("Could not generate ACK: " + e.getMessage(), e);
+        } finally {
+            Metrics.ACK.recordSince(start);
+        }
+    }
+
+    // Returns null when the template does not cover the request.
+    private byte[] fill(byte[] frame, int mshLength, AcknowledgmentCode code, String text, String reason)
+            throws IOException {
+        if (mshLength < 8 || frame[0] != 'M' || frame[1] != 'S' || frame[2] != 'H') {
+            return null;
+        }
+        byte fieldSep = frame[3];
+        int[] bounds = fieldBounds.get();
+        findFields(frame, mshLength, fieldSep, bounds);
+        // MSH-2 must be exactly the four standard encoding characters
+        if (bounds[5] - bounds[4] != 4) {
+            return null;
+        }
+        byte componentSep = frame[4];
+        byte repetitionSep = frame[5];
+        byte escape = frame[6];
+        byte subcomponentSep = frame[7];
+        if (!isVersion(frame, bounds, componentSep, repetitionSep, subcomponentSep)
+                || hasAny(text, fieldSep, componentSep, repetitionSep, escape, subcomponentSep)
+                || hasAny(reason, fieldSep, componentSep, repetitionSep, escape, subcomponentSep)) {
+            return null;
+        }
+        // Copied values are written back unchanged, which matches HAPI's unescape and re-escape
+        // only when they contain no escape sequences
+        for (int field : new int[] {3, 4, 5, 6, 9, 10, 11}) {
+            for (int p = bounds[2 * field]; p < bounds[2 * field + 1]; p++) {
+                if (frame[p] == escape) {
+                    return null;
+                }
+            }
+        }
+
+        byte[] out = buffers.get();
+        int pos = 0;
+        out = ensure(out, pos, mshLength + 256);
+        pos = put(out, pos, frame, 0, bounds[5]); // MSH, field separator and encoding characters
+        pos = putField(out, pos, fieldSep, frame, bounds, 5, componentSep, repetitionSep, subcomponentSep);
+        pos = putField(out, pos, fieldSep, frame, bounds, 6, componentSep, repetitionSep, subcomponentSep);
+        pos = putField(out, pos, fieldSep, frame, bounds, 3, componentSep, repetitionSep, subcomponentSep);
+        pos = putField(out, pos, fieldSep, frame, bounds, 4, componentSep, repetitionSep, subcomponentSep);
+        out[pos++] = fieldSep;
+        pos = putTimestamp(out, pos);
+        out[pos++] = fieldSep; // MSH-8
+        out[pos++] = fieldSep;
+        out[pos++] = 'A';
+        out[pos++] = 'C';
+        out[pos++] = 'K';
+        int trigger = componentStart(frame, bounds[18], bounds[19], componentSep, repetitionSep, 1);
+        int triggerEnd = trigger >= 0
+            ? componentEnd(frame, trigger, bounds[19], componentSep, repetitionSep, subcomponentSep) : -1;
+        if (triggerEnd > trigger) {
+            out[pos++] = componentSep;
+            pos = put(out, pos, frame, trigger, triggerEnd);
+        }
+        out[pos++] = fieldSep;
+        byte[] id = ascii(ids.getID());
+        out = ensure(out, pos, id.length + 128);
+        pos = put(out, pos, id, 0, id.length);
+        pos = putField(out, pos, fieldSep, frame, bounds, 11, componentSep, repetitionSep, subcomponentSep);
+        pos = putField(out, pos, fieldSep, frame, bounds, 12, componentSep, repetitionSep, subcomponentSep);
+        out[pos++] = '\r';
+
+        int controlStart = bounds[20];
+        int controlEnd = componentEnd(frame, controlStart, bounds[21], componentSep, repetitionSep, subcomponentSep);
+        String msa3 = reason != null ? INTERNAL_ERROR : text;
+        out = ensure(out, pos, controlEnd - controlStart + (msa3 != null ? msa3.length() : 0)
+            + (reason != null ? ERR_PREFIX.length + reason.length() : 0) + 32);
+        out[pos++] = 'M';
+        out[pos++] = 'S';
+        out[pos++] = 'A';
+        out[pos++] = fieldSep;
+        pos = putAscii(out, pos, code.name());
+        // Trailing empty fields are left out, as the pipe encoder does
+        if (controlEnd > controlStart || msa3 != null) {
+            out[pos++] = fieldSep;
+            pos = put(out, pos, frame, controlStart, controlEnd);
+        }
+        if (msa3 != null) {
+            out[pos++] = fieldSep;
+            pos = putAscii(out, pos, msa3);
+        }
+        out[pos++] = '\r';
+        if (reason != null) {
+            out[pos++] = 'E';
+            out[pos++] = 'R';
+            out[pos++] = 'R';
+            out[pos++] = fieldSep;
+            for (byte b : ERR_PREFIX) {
+                out[pos++] = b == '^' ? componentSep : b == '&' ? subcomponentSep : b;
+            }
+            pos = putAscii(out, pos, reason);
+            out[pos++] = '\r';
+        }
+        buffers.set(out);
+        return Arrays.copyOf(out, pos);
+    }
+
+    // bounds[2n], bounds[2n + 1] delimit MSH-n for n = 2..12; missing fields are empty.
+    private static void findFields(byte[] frame, int mshLength, byte fieldSep, int[] bounds) {
+        Arrays.fill(bounds, mshLength);
+        int field = 2;
+        bounds[4] = 4;
+        for (int p = 4; p < mshLength && field <= FIELDS; p++) {
+            if (frame[p] == fieldSep) {
+                bounds[2 * field + 1] = p;
+                field++;
+                if (field <= FIELDS) {
+                    bounds[2 * field] = p + 1;
+                }
+            }
+        }
+    }
+
+    private static boolean isVersion(byte[] frame, int[] bounds, byte componentSep, byte repetitionSep,
+                                     byte subcomponentSep) {
+        int start = bounds[24];
+        int end = componentEnd(frame, start, bounds[25], componentSep, repetitionSep, subcomponentSep);
+        if (end - start != VERSION.length()) {
+            return false;
+        }
+        for (int i = 0; i < VERSION.length(); i++) {
+            if (frame[start + i] != VERSION.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasAny(String value, byte... separators) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c > 0xff || c == '\r' || c == '\n') {
+                return true;
+            }
+            for (byte separator : separators) {
+                if (c == (separator & 0xff)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Start of component n (0-based) in the first repetition, or -1 when there is none.
+    private static int componentStart(byte[] frame, int start, int end, byte componentSep, byte repetitionSep, int n) {
+        int index = 0;
+        for (int p = start; p < end && index < n; p++) {
+            if (frame[p] == repetitionSep) {
+                return -1;
+            }
+            if (frame[p] == componentSep) {
+                index++;
+                if (index == n) {
+                    return p + 1;
+                }
+            }
+        }
+        return n == 0 ? start : -1;
+    }
+
+    // End of the first subcomponent starting at start.
+    private static int componentEnd(byte[] frame, int start, int end, byte componentSep, byte repetitionSep,
+                                    byte subcomponentSep) {
+        int p = start;
+        while (p < end && frame[p] != componentSep && frame[p] != repetitionSep && frame[p] != subcomponentSep) {
+            p++;
+        }
+        return p;
+    }
+
+    private static int putField(byte[] out, int pos, byte fieldSep, byte[] frame, int[] bounds, int field,
+                                byte componentSep, byte repetitionSep, byte subcomponentSep) {
+        out[pos++] = fieldSep;
+        int start = bounds[2 * field];
+        return put(out, pos, frame, start,
+            componentEnd(frame, start, bounds[2 * field + 1], componentSep, repetitionSep, subcomponentSep));
+    }
+
+    private static int put(byte[] out, int pos, byte[] from, int start, int end) {
+        System.arraycopy(from, start, out, pos, end - start);
+        return pos + end - start;
+    }
+
+    private static int putAscii(byte[] out, int pos, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            out[pos++] = (byte) value.charAt(i);
+        }
+        return pos;
+    }
+
+    private static byte[] ensure(byte[] out, int pos, int needed) {
+        return pos + needed <= out.length ? out : Arrays.copyOf(out, Math.max(out.length * 2, pos + needed));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // MSH-7 as CommonTS.toHl7TSFormat writes it: local time, milliseconds without trailing
+    // zeros (left out when zero) and the zone offset. The seconds part changes once a second.
+    private int putTimestamp(byte[] out, int pos) {
+        long now = System.currentTimeMillis();
+        long second = Math.floorDiv(now, 1000);
+        Clock current = clock;
+        if (current.second != second) {
+            current = Clock.at(second);
+            clock = current;
+        }
+        pos = put(out, pos, current.dateTime, 0, current.dateTime.length);
+        int millis = (int) Math.floorMod(now, 1000);
+        if (millis != 0) {
+            out[pos++] = '.';
+            out[pos++] = (byte) ('0' + millis / 100);
+            if (millis % 100 != 0) {
+                out[pos++] = (byte) ('0' + millis / 10 % 10);
+                if (millis % 10 != 0) {
+                    out[pos++] = (byte) ('0' + millis % 10);
+                }
+            }
+        }
+        return put(out, pos, current.offset, 0, current.offset.length);
+    }
+
+    private static final class Clock {
+        final long second;
+        final byte[] dateTime;
+        final byte[] offset;
+
+        Clock(long second, byte[] dateTime, byte[] offset) {
+            this.second = second;
+            this.dateTime = dateTime;
+            this.offset = offset;
+        }
+
+        static Clock at(long second) {
+            Instant instant = Instant.ofEpochSecond(second);
+            ZoneOffset zone = ZoneId.systemDefault().getRules().getOffset(instant);
+            LocalDateTime local = LocalDateTime.ofEpochSecond(second, 0, zone);
+            String dateTime = String.format("%04d%02d%02d%02d%02d%02d", local.getYear(), local.getMonthValue(),
+                local.getDayOfMonth(), local.getHour(), local.getMinute(), local.getSecond());
+            int minutes = zone.getTotalSeconds() / 60;
+            String offset = String.format("%c%02d%02d", minutes < 0 ? '-' : '+', Math.abs(minutes) / 60,
+                Math.abs(minutes) % 60);
+            return new Clock(second, ascii(dateTime), ascii(offset));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.nio.charset.Charset;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+// An ACK encoded once: the bytes written back on the MLLP connection and the same text
+// published to the -ACK topic or kept in the outage store. The text is decoded with the request's
+// charset, since the ACK copies its MSH fields byte for byte.
+public final class Acknowledgement {
+    private final byte[] bytes;
+    private final String text;
+
+    Acknowledgement(byte[] bytes, Charset charset) {
+        this.bytes = bytes;
+        this.text = new String(bytes, charset);
+    }
+
+    static Acknowledgement of(Message ack, Charset charset) throws HL7Exception {
+        return new Acknowledgement(ack.encode().getBytes(charset), charset);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
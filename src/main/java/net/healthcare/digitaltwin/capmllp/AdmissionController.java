@@ -0,0 +1,369 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Decides whether a received message is processed now, after a delay, or refused with an AR
+// (application reject) so the sender retries later. Two signals drive it:
+//   - processing latency: the in-flight limit shrinks multiplicatively while the average time
+//     from admission to ACK is above ADMISSION_TARGET_LATENCY_MS, and grows by one per interval
+//     while it is below and the limit is being used (AIMD);
+//   - outage store headroom while Kafka is unavailable: free disk space, backlog size and the
+//     outage log's quota move the level from ADMIT to THROTTLE to REJECT, and a REJECT that
+//     lasts ADMISSION_STOP_AFTER_MS becomes STOP, where the listener stops accepting connections
+//     altogether.
+// Each listener's connection limit follows the level too: halved while throttling and one while
+// refusing, so new connections are turned away at accept before their messages are refused.
+// Connections sending well above the average rate are the first to be delayed or refused, so one
+// flooding analyser does not take the latency of the other feeds down with it.
+public class AdmissionController implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+    private static final long MB = 1024L * 1024L;
+    private static final int HEAVY_MIN_MESSAGES = 10; // per interval, before a connection can count as heavy
+
+    public enum Level {
+        ADMIT, THROTTLE, REJECT, STOP
+    }
+
+    private final OutageLog outageLog;
+    private final KafkaCircuitBreaker breaker;
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final long queueTimeoutMs;
+    private final long throttleDelayMs;
+    private final long minFreeBytes;
+    private final long maxBacklogBytes;
+    private final long stopAfterMs;
+    private final long intervalMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Condition levelChanged = lock.newCondition();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder latencySumNanos = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private final Map<String, AtomicInteger> perConnection = new ConcurrentHashMap<>();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final List<Consumer<Level>> listeners = new CopyOnWriteArrayList<>();
+    private volatile int limit;
+    private volatile Level level = Level.ADMIT;
+    private volatile Set<String> heavyConnections = Set.of();
+    private long rejectingSince;
+    private ScheduledExecutorService scheduler;
+
+    public AdmissionController(OutageLog outageLog, KafkaCircuitBreaker breaker) {
+        this.outageLog = outageLog;
+        this.breaker = breaker;
+        this.enabled = EnvConfig.getBoolean("ADMISSION_CONTROL", true);
+        this.maxLimit = Math.max(1, EnvConfig.getInt("ADMISSION_MAX_INFLIGHT", 64));
+        this.minLimit = Math.min(maxLimit, Math.max(1, EnvConfig.getInt("ADMISSION_MIN_INFLIGHT", 4)));
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(EnvConfig.getLong("ADMISSION_TARGET_LATENCY_MS", 1000));
+        this.queueTimeoutMs = EnvConfig.getLong("ADMISSION_QUEUE_TIMEOUT_MS", 2000);
+        this.throttleDelayMs = EnvConfig.getLong("ADMISSION_THROTTLE_DELAY_MS", 250);
+        this.minFreeBytes = EnvConfig.getLong("ADMISSION_MIN_FREE_MB", 1024) * MB;
+        this.maxBacklogBytes = EnvConfig.getLong("ADMISSION_MAX_BACKLOG_MB", 0) * MB;
+        this.stopAfterMs = EnvConfig.getLong("ADMISSION_STOP_AFTER_MS", 300_000);
+        this.intervalMs = Math.max(100, EnvConfig.getLong("ADMISSION_INTERVAL_MS", 1000));
+        this.limit = maxLimit;
+    }
+
+    public void start() {
+        if (!enabled) {
+            LOG.info("Admission control disabled");
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadSupport.factory("admission"));
+        scheduler.scheduleWithFixedDelay(this::evaluate, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        LOG.info("Admission control: in-flight {}..{}, target latency {}ms, min free {}MB, max backlog {}MB",
+            minLimit, maxLimit, TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos), minFreeBytes / MB,
+            maxBacklogBytes > 0 ? maxBacklogBytes / MB : "unlimited");
+    }
+
+    // Returns the admission time to pass to release(), or -1 when the message must be refused.
+    // May block the connection's thread while waiting for a free slot.
+    public long admit(String connectionId) throws InterruptedException {
+        if (!enabled) {
+            return System.nanoTime();
+        }
+        String key = key(connectionId);
+        perConnection.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        boolean heavy = heavyConnections.contains(key);
+
+        Level current = level;
+        if (current == Level.REJECT || current == Level.STOP) {
+            rejected.increment();
+            return -1;
+        }
+        if (!tryAcquire(heavy ? 0 : queueTimeoutMs)) {
+            rejected.increment();
+            return -1;
+        }
+        return System.nanoTime();
+    }
+
+    // A sender waits for the ACK before its next message, so holding the ACK of a heavy
+    // connection while throttling slows it down. Called once the message is processed and its
+    // slot released; the wait lasts at most ADMISSION_THROTTLE_DELAY_MS and ends as soon as the
+    // level leaves THROTTLE.
+    public void holdAck(String connectionId) throws InterruptedException {
+        if (!enabled || level != Level.THROTTLE || !heavyConnections.contains(key(connectionId))) {
+            return;
+        }
+        delayed.increment();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(throttleDelayMs);
+        lock.lock();
+        try {
+            while (level == Level.THROTTLE && remaining > 0) {
+                remaining = levelChanged.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // How many connections a listener configured for the given number accepts at this level.
+    // Connections already open are kept; only new ones beyond the limit are refused.
+    public int connectionLimit(int configured) {
+        if (!enabled) {
+            return configured;
+        }
+        switch (level) {
+            case THROTTLE:
+                return Math.max(1, configured / 2);
+            case REJECT:
+            case STOP:
+                return 1;
+            default:
+                return configured;
+        }
+    }
+
+    private static String key(String connectionId) {
+        return connectionId != null ? connectionId : "unknown";
+    }
+
+    public void release(long admittedNanos) {
+        if (!enabled || admittedNanos < 0) {
+            return;
+        }
+        latencySumNanos.add(System.nanoTime() - admittedNanos);
+        latencyCount.increment();
+        inFlight.decrementAndGet();
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean tryAcquire(long timeoutMs) throws InterruptedException {
+        if (acquireSlot()) {
+            return true;
+        }
+        if (timeoutMs <= 0) {
+            return false;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        waiting.incrementAndGet();
+        lock.lock();
+        try {
+            while (!acquireSlot()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+        }
+    }
+
+    private boolean acquireSlot() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                peakInFlight.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    void evaluate() {
+        try {
+            adjustLimit();
+            findHeavyConnections();
+            setLevel(storeLevel());
+        } catch (RuntimeException e) {
+            LOG.error("Admission evaluation failed", e);
+        }
+    }
+
+    private void adjustLimit() {
+        long count = latencyCount.sumThenReset();
+        long sum = latencySumNanos.sumThenReset();
+        int peak = peakInFlight.getAndSet(inFlight.get());
+        int current = limit;
+        if (count > 0 && sum / count > targetLatencyNanos) {
+            limit = Math.max(minLimit, current * 3 / 4);
+        } else if (peak >= current) {
+            limit = Math.min(maxLimit, current + 1);
+        }
+        if (limit != current) {
+            LOG.debug("Admission limit {} -> {} (avg latency {}ms over {} messages)", current, limit,
+                count > 0 ? TimeUnit.NANOSECONDS.toMillis(sum / count) : 0, count);
+        }
+    }
+
+    private void findHeavyConnections() {
+        Set<String> heavy = new HashSet<>();
+        long total = 0;
+        for (AtomicInteger count : perConnection.values()) {
+            total += count.get();
+        }
+        int connections = perConnection.size();
+        if (connections > 1) {
+            // Twice the mean rate of the connections that sent anything in the last interval
+            long threshold = Math.max(HEAVY_MIN_MESSAGES, 2 * total / connections);
+            perConnection.forEach((connection, count) -> {
+                if (count.get() > threshold) {
+                    heavy.add(connection);
+                }
+            });
+        }
+        perConnection.clear();
+        if (!heavy.equals(heavyConnections)) {
+            if (!heavy.isEmpty()) {
+                LOG.info("Heavy senders in the last {}ms: {}", intervalMs, heavy);
+            }
+            heavyConnections = Set.copyOf(heavy);
+        }
+    }
+
+    private Level storeLevel() {
+        if (breaker.getState() == KafkaCircuitBreaker.State.CLOSED) {
+            return Level.ADMIT; // nothing is being written to the outage store
+        }
+        long free = freeBytes();
+        long backlog = maxBacklogBytes > 0 ? outageLog.getBacklogBytes() : 0;
+        // The outage log's own byte quota, when it refuses rather than drops
+        long quota = outageLog.getQuotaPolicy() == OutageLog.QuotaPolicy.REJECT ? outageLog.getMaxBytes() : 0;
+        long used = outageLog.getUsedBytes();
+        Level next;
+        if (free < minFreeBytes || (maxBacklogBytes > 0 && backlog >= maxBacklogBytes) || outageLog.isQuotaReached()) {
+            next = Level.REJECT;
+        } else if (free < 2 * minFreeBytes || (maxBacklogBytes > 0 && backlog >= maxBacklogBytes * 4 / 5)
+                || (quota > 0 && used >= quota * 4 / 5)) {
+            next = Level.THROTTLE;
+        } else {
+            next = Level.ADMIT;
+        }
+        long now = System.currentTimeMillis();
+        if (next == Level.REJECT) {
+            if (rejectingSince == 0) {
+                rejectingSince = now;
+            } else if (now - rejectingSince >= stopAfterMs) {
+                next = Level.STOP;
+            }
+        } else {
+            rejectingSince = 0;
+        }
+        return next;
+    }
+
+    private long freeBytes() {
+        try {
+            return Files.getFileStore(outageLog.getDirectory()).getUsableSpace();
+        } catch (IOException e) {
+            LOG.debug("Could not read free space for {}: {}", outageLog.getDirectory(), e.getMessage());
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private void setLevel(Level next) {
+        Level previous = level;
+        if (next == previous) {
+            return;
+        }
+        level = next;
+        lock.lock();
+        try {
+            levelChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (next.compareTo(previous) > 0) {
+            LOG.warn("Admission {} (was {}): free {}MB, backlog {}MB", next, previous, freeBytes() / MB,
+                outageLog.getBacklogBytes() / MB);
+        } else {
+            LOG.info("Admission {} (was {})", next, previous);
+        }
+        for (Consumer<Level> listener : listeners) {
+            try {
+                listener.accept(next);
+            } catch (RuntimeException e) {
+                LOG.error("Admission listener failed", e);
+            }
+        }
+    }
+
+    public void addListener(Consumer<Level> listener) {
+        listeners.add(listener);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
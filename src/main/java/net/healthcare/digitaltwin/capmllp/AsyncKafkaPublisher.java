@@ -0,0 +1,70 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Publishing for KAFKA_PUBLISH_MODE=async. The message and its ACK record are sent together
+// through KafkaSender, so an MLLP exchange costs one broker round-trip instead of two. There is
+// no pipelining across messages: MLLP lets a sender have one message outstanding per connection,
+// and its ACK waits for the broker, so each connection has at most one pair in flight.
+public class AsyncKafkaPublisher implements KafkaPairPublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncKafkaPublisher.class);
+
+    private final KafkaSender sender;
+    private final long confirmTimeoutMs;
+
+    public AsyncKafkaPublisher(KafkaSender sender) {
+        this.sender = sender;
+        this.confirmTimeoutMs = EnvConfig.getLong("KAFKA_CONFIRM_TIMEOUT_MS",
+            KafkaConfig.getMaxBlockMs() + KafkaConfig.getDeliveryTimeoutMs() + 100L);
+        LOG.info("Async Kafka publishing enabled: confirm timeout={}ms", confirmTimeoutMs);
+    }
+
+    // CONFIRMED only once the broker has confirmed the message and, when present, its ACK. A
+    // timed-out send is reported as NOT_PUBLISHED: async mode is at-least-once.
+    // Message and ACK are String or byte[], to match the configured value serializer.
+    @Override
+    public Result publish(String topic, Object message, String ackTopic, Object ack, String key) {
+        try {
+            CompletableFuture<Exchange> messageSend = sender.send(topic, message, key);
+            CompletableFuture<Exchange> ackSend = ack != null
+                ? sender.send(ackTopic, ack, key)
+                : CompletableFuture.completedFuture(null);
+
+            CompletableFuture.allOf(messageSend, ackSend).get(confirmTimeoutMs, TimeUnit.MILLISECONDS);
+            return confirmed(messageSend.get(), topic) & confirmed(ackSend.get(), ackTopic)
+                ? Result.CONFIRMED : Result.NOT_PUBLISHED;
+        } catch (TimeoutException e) {
+            LOG.warn("Kafka confirm timed out after {}ms for topic={}", confirmTimeoutMs, topic);
+            return Result.NOT_PUBLISHED;
+        } catch (ExecutionException e) {
+            LOG.warn("Kafka async send failed for topic={}: {}", topic, e.getCause().getMessage());
+            return Result.NOT_PUBLISHED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.NOT_PUBLISHED;
+        }
+    }
+
+    private static boolean confirmed(Exchange exchange, String topic) {
+        if (exchange == null) {
+            return true;
+        }
+        if (exchange.getException() != null) {
+            LOG.warn("Kafka rejected record for topic={}: {}", topic, exchange.getException().getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        sender.close();
+    }
+}
@@ -0,0 +1,263 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Remembers which messages have reached Kafka, keyed on sending facility (MSH-4) and control ID
+// (MSH-10), so sender retransmits and re-replayed outage records are not published twice. A key is
+// reserved as in flight when its message is admitted for publishing, confirmed once Kafka has the
+// message, and released when the publish fails, so the retransmit or the stored copy is published.
+// Only a confirmed key makes a later copy a duplicate; a copy arriving while the key is in flight
+// is told so, and the caller must not acknowledge it as published. Each key is kept as a 63-bit
+// fingerprint, with the top bit marking it in flight, in one of two open-addressed long[] tables:
+// new keys go into the current generation, lookups check both, and the older generation is
+// dropped when the current one is DEDUP_WINDOW_MINUTES old or holds DEDUP_MAX_ENTRIES keys.
+// A key is therefore remembered for at least one window unless the entry bound is hit first, and
+// memory is fixed at startup. Fingerprint collisions are negligible at these sizes.
+public final class DuplicateFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(DuplicateFilter.class);
+    public static final long EMPTY = 0L; // no control ID: never treated as a duplicate
+    // A table stays at most half full, and may have 2^25 slots
+    static final int MAX_ENTRIES = 1 << 24;
+    private static final long IN_FLIGHT = Long.MIN_VALUE;
+
+    public enum Source {
+        LIVE, REPLAY
+    }
+
+    public enum Reservation {
+        RESERVED, // the caller publishes the message and then confirms or releases the key
+        PUBLISHED, // a duplicate of a message Kafka already has
+        IN_FLIGHT // the same key is still being published, and may yet fail
+    }
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long windowMs;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder liveHits = new LongAdder();
+    private final LongAdder replayHits = new LongAdder();
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private int previousSize;
+    private long currentStartedAt;
+
+    DuplicateFilter(boolean enabled, int maxEntries, long windowMs) {
+        this.enabled = enabled && maxEntries > 0;
+        this.maxEntries = Math.min(Math.max(1, maxEntries), MAX_ENTRIES);
+        this.windowMs = Math.max(1, windowMs);
+        // At most half full, so probe sequences stay short and always reach an empty slot
+        int slots = this.enabled ? Integer.highestOneBit(this.maxEntries * 2 - 1) << 1 : 1;
+        this.mask = slots - 1;
+        this.current = new long[slots];
+        this.previous = new long[slots];
+        this.currentStartedAt = System.currentTimeMillis();
+    }
+
+    static DuplicateFilter fromEnvironment() {
+        int maxEntries = EnvConfig.getInt("DEDUP_MAX_ENTRIES", 200_000);
+        if (maxEntries > MAX_ENTRIES) {
+            LOG.warn("DEDUP_MAX_ENTRIES={} is above the limit of {}; using {}", maxEntries, MAX_ENTRIES, MAX_ENTRIES);
+        }
+        DuplicateFilter filter = new DuplicateFilter(EnvConfig.getBoolean("DEDUP_ENABLED", true), maxEntries,
+            EnvConfig.getLong("DEDUP_WINDOW_MINUTES", 60) * 60_000L);
+        if (filter.enabled) {
+            LOG.info("Duplicate suppression: window={}min, maxEntries={}, {} KiB", filter.windowMs / 60_000,
+                filter.maxEntries, (long) (filter.mask + 1) * 2 * Long.BYTES / 1024);
+        } else {
+            LOG.info("Duplicate suppression disabled");
+        }
+        return filter;
+    }
+
+    // Fingerprint of (facility, controlId), top bit clear; 0 when there is no control ID to key on.
+    public static long fingerprint(String facility, String controlId) {
+        if (controlId == null || controlId.isEmpty()) {
+            return EMPTY;
+        }
+        long hash = 0xcbf29ce484222325L; // FNV-1a, then a murmur3 finalizer to spread the bits
+        if (facility != null) {
+            for (int i = 0; i < facility.length(); i++) {
+                hash = (hash ^ facility.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        hash = (hash ^ 0x1f) * 0x100000001b3L;
+        for (int i = 0; i < controlId.length(); i++) {
+            hash = (hash ^ controlId.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        hash &= ~IN_FLIGHT;
+        return hash != EMPTY ? hash : 1L;
+    }
+
+    public static long fingerprint(HL7Header header) {
+        return header != null ? fingerprint(header.getSendingFacility(), header.getControlId()) : EMPTY;
+    }
+
+    // Reserves the key, as in flight, for a message about to be published. Anything but RESERVED
+    // means the caller must not publish the message; PUBLISHED counts a hit.
+    public Reservation reserve(long fingerprint, Source source) {
+        if (!enabled || fingerprint == EMPTY) {
+            return Reservation.RESERVED;
+        }
+        Reservation reservation;
+        lock.lock();
+        try {
+            rotate(System.currentTimeMillis());
+            long found = find(current, fingerprint);
+            if (found == EMPTY) {
+                found = find(previous, fingerprint);
+            }
+            if (found == EMPTY) {
+                insert(current, fingerprint | IN_FLIGHT);
+                currentSize++;
+                reservation = Reservation.RESERVED;
+            } else {
+                reservation = (found & IN_FLIGHT) != 0 ? Reservation.IN_FLIGHT : Reservation.PUBLISHED;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (reservation == Reservation.PUBLISHED) {
+            (source == Source.LIVE ? liveHits : replayHits).increment();
+        }
+        return reservation;
+    }
+
+    // Kafka has confirmed the message: from now on its key marks copies as duplicates.
+    public void confirm(long fingerprint) {
+        if (!enabled || fingerprint == EMPTY) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!confirm(current, fingerprint)) {
+                confirm(previous, fingerprint);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives a reservation back when Kafka did not confirm the message, so the retransmit or the
+    // replay of the stored copy is published.
+    public void release(long fingerprint) {
+        if (!enabled || fingerprint == EMPTY) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (remove(current, fingerprint)) {
+                currentSize--;
+            } else if (remove(previous, fingerprint)) {
+                previousSize--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rotate(long now) {
+        long age = now - currentStartedAt;
+        if (age < windowMs && currentSize < maxEntries) {
+            return;
+        }
+        if (age >= 2 * windowMs) {
+            // Idle for more than a whole window: both generations have expired
+            Arrays.fill(previous, EMPTY);
+            previousSize = 0;
+        } else {
+            long[] recycled = previous;
+            previous = current;
+            previousSize = currentSize;
+            current = recycled;
+        }
+        Arrays.fill(current, EMPTY);
+        currentSize = 0;
+        currentStartedAt = now;
+    }
+
+    // The stored entry, in-flight bit included, or EMPTY
+    private long find(long[] table, long fingerprint) {
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            long value = table[slot];
+            if ((value & ~IN_FLIGHT) == fingerprint) {
+                return value;
+            }
+            if (value == EMPTY) {
+                return EMPTY;
+            }
+        }
+    }
+
+    // Only called for an entry that is not in the table yet
+    private void insert(long[] table, long entry) {
+        int slot = (int) entry & mask;
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry;
+    }
+
+    private boolean confirm(long[] table, long fingerprint) {
+        for (int slot = (int) fingerprint & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if ((table[slot] & ~IN_FLIGHT) == fingerprint) {
+                table[slot] = fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Linear-probing delete: later keys of the probe run are shifted back over the hole, so
+    // lookups that pass this slot still find them.
+    private boolean remove(long[] table, long fingerprint) {
+        int hole = (int) fingerprint & mask;
+        while ((table[hole] & ~IN_FLIGHT) != fingerprint) {
+            if (table[hole] == EMPTY) {
+                return false;
+            }
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = (int) table[slot] & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = EMPTY;
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getLiveHits() {
+        return liveHits.sum();
+    }
+
+    public long getReplayHits() {
+        return replayHits.sum();
+    }
+
+    public long getEntries() {
+        lock.lock();
+        try {
+            return currentSize + previousSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Typed access to the environment variables the deployment sets, with defaults.
+final class EnvConfig {
+    private static final Logger LOG = LoggerFactory.getLogger(EnvConfig.class);
+
+    private EnvConfig() {
+    }
+
+    static String get(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.trim().isEmpty() ? value.trim() : defaultValue;
+    }
+
+    static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value for {}: '{}' - using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static double getDouble(String name, double defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value for {}: '{}' - using {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+}
@@ -0,0 +1,80 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Exclusive ownership of an outage-store resource (a log segment, or the legacy folders) among
+// the replay workers of this process and every replica whose outage directory is on the same
+// volume. The owner holds an OS lock on <resource>.lease, so a lease ends when it is closed or
+// its process dies; there is no expiry to tune and no clock to trust. Java file locks belong to
+// the whole JVM, so leases held here are also tracked in a set to keep threads apart.
+public final class FileLease implements Closeable {
+    private static final String SUFFIX = ".lease";
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private boolean released;
+
+    private FileLease(Path file, FileChannel channel, FileLock lock) {
+        this.file = file;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    // The lease on resource, or null when a thread or process already holds it.
+    public static FileLease tryAcquire(Path resource) throws IOException {
+        Path file = resource.resolveSibling(resource.getFileName() + SUFFIX).toAbsolutePath().normalize();
+        if (!HELD.add(file)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                HELD.remove(file);
+                return null;
+            }
+            return new FileLease(file, channel, lock);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            HELD.remove(file);
+            throw e;
+        }
+    }
+
+    // Releases the lease and removes its file, once the resource itself has been deleted.
+    public synchronized void closeAndDelete() throws IOException {
+        if (!released) {
+            // Deleted while still locked: a process that opened the old file finds the resource gone
+            Files.deleteIfExists(file);
+        }
+        close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            lock.release();
+        } finally {
+            channel.close();
+            HELD.remove(file);
+        }
+    }
+}
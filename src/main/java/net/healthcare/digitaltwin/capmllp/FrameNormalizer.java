@@ -0,0 +1,189 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Rewrites sender quirks directly in the MLLP payload bytes before HAPI sees them.
+// Every rule only shrinks or keeps the length of a field, so the frame is rewritten
+// in place in a single pass and nothing is allocated per message.
+public class FrameNormalizer {
+    private static final Logger LOG = LoggerFactory.getLogger(FrameNormalizer.class);
+    public static final String DEFAULT_RULES = "MSH-12:first-component";
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    public enum Action {
+        FIRST_COMPONENT, // keep everything up to the first component or repetition separator
+        TRIM,            // strip leading and trailing spaces
+        CLEAR            // drop the field value, keeping the separator
+    }
+
+    private static final class Rule {
+        final byte s0, s1, s2;
+        final int field;
+        final Action action;
+
+        Rule(String segment, int field, Action action) {
+            this.s0 = (byte) segment.charAt(0);
+            this.s1 = (byte) segment.charAt(1);
+            this.s2 = (byte) segment.charAt(2);
+            this.field = field;
+            this.action = action;
+        }
+    }
+
+    private final Rule[] rules;
+    private final boolean normalizeLineEndings;
+
+    public FrameNormalizer(String spec) {
+        List<Rule> parsed = new ArrayList<>();
+        boolean lineEndings = false;
+        for (String token : spec.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            if ("line-endings".equalsIgnoreCase(token)) {
+                lineEndings = true;
+                continue;
+            }
+            parsed.add(parseRule(token));
+        }
+        this.rules = parsed.toArray(new Rule[0]);
+        this.normalizeLineEndings = lineEndings;
+        LOG.info("Frame normalizer configured with {} field rule(s), line-endings={}", rules.length, lineEndings);
+    }
+
+    public static FrameNormalizer fromEnvironment() {
+        String spec = System.getenv("MLLP_FRAME_FIXUPS") != null
+            ? System.getenv("MLLP_FRAME_FIXUPS")
+            : DEFAULT_RULES;
+        return new FrameNormalizer(spec);
+    }
+
+    // Rule syntax: SEG-N:action, e.g. MSH-12:first-component or PID-3:trim
+    private static Rule parseRule(String token) {
+        int dash = token.indexOf('-');
+        int colon = token.indexOf(':');
+        if (dash != 3 || colon < dash) {
+            throw new IllegalArgumentException("Invalid frame fix-up rule: " + token);
+        }
+        String segment = token.substring(0, 3).toUpperCase(Locale.ROOT);
+        int field = Integer.parseInt(token.substring(dash + 1, colon));
+        if (field < 1 || ("MSH".equals(segment) && field < 3)) {
+            throw new IllegalArgumentException("Field index not rewritable in rule: " + token);
+        }
+        Action action = Action.valueOf(token.substring(colon + 1).trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        return new Rule(segment, field, action);
+    }
+
+    // Normalizes frame[0..length) in place and returns the new length.
+    public int normalize(byte[] frame, int length) {
+        byte fieldSep = '|';
+        byte componentSep = '^';
+        byte repetitionSep = '~';
+
+        int r = 0;
+        int w = 0;
+        while (r < length) {
+            // Start of a segment
+            boolean msh = length - r > 3 && frame[r] == 'M' && frame[r + 1] == 'S' && frame[r + 2] == 'H';
+            if (msh) {
+                fieldSep = frame[r + 3];
+                if (length - r > 6) {
+                    componentSep = frame[r + 4];
+                    repetitionSep = frame[r + 5];
+                }
+            }
+            int ruleStart = firstRuleFor(frame, r, length);
+
+            // For MSH the separator itself is MSH-1, so the first delimited field is MSH-2
+            int field = msh ? 1 : 0;
+            int fieldStart = w;
+            boolean segmentEnded = false;
+            while (r < length && !segmentEnded) {
+                byte b = frame[r++];
+                boolean terminator = b == CR || (b == LF && normalizeLineEndings);
+                if (b == fieldSep || terminator) {
+                    if (ruleStart >= 0 && field > 0) {
+                        w = applyRules(frame, ruleStart, field, fieldStart, w, componentSep, repetitionSep);
+                    }
+                    if (terminator) {
+                        segmentEnded = true;
+                        if (normalizeLineEndings && b == CR && r < length && frame[r] == LF) {
+                            r++; // swallow the LF of a CRLF pair
+                        }
+                        frame[w++] = CR;
+                    } else {
+                        frame[w++] = b;
+                        field++;
+                        fieldStart = w;
+                    }
+                } else {
+                    frame[w++] = b;
+                }
+            }
+            if (!segmentEnded && ruleStart >= 0 && field > 0) {
+                w = applyRules(frame, ruleStart, field, fieldStart, w, componentSep, repetitionSep);
+            }
+        }
+        return w;
+    }
+
+    private int firstRuleFor(byte[] frame, int pos, int length) {
+        if (length - pos < 3) {
+            return -1;
+        }
+        for (int i = 0; i < rules.length; i++) {
+            Rule rule = rules[i];
+            if (rule.s0 == frame[pos] && rule.s1 == frame[pos + 1] && rule.s2 == frame[pos + 2]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Applies every rule for the current segment and field to frame[start..end); returns the new end.
+    private int applyRules(byte[] frame, int ruleStart, int field, int start, int end,
+                           byte componentSep, byte repetitionSep) {
+        Rule first = rules[ruleStart];
+        for (int i = ruleStart; i < rules.length; i++) {
+            Rule rule = rules[i];
+            if (rule.s0 != first.s0 || rule.s1 != first.s1 || rule.s2 != first.s2 || rule.field != field) {
+                continue;
+            }
+            switch (rule.action) {
+                case FIRST_COMPONENT:
+                    for (int p = start; p < end; p++) {
+                        if (frame[p] == componentSep || frame[p] == repetitionSep) {
+                            end = p;
+                            break;
+                        }
+                    }
+                    break;
+                case TRIM:
+                    while (end > start && frame[end - 1] == ' ') {
+                        end--;
+                    }
+                    int lead = start;
+                    while (lead < end && frame[lead] == ' ') {
+                        lead++;
+                    }
+                    if (lead > start) {
+                        System.arraycopy(frame, lead, frame, start, end - lead);
+                        end -= lead - start;
+                    }
+                    break;
+                case CLEAR:
+                    end = start;
+                    break;
+            }
+        }
+        return end;
+    }
+}
@@ -1,6 +1,6 @@
 package net.healthcare.digitaltwin.capmllp;
 
-import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,145 +9,389 @@ import org.apache.camel.ProducerTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ca.uhn.hl7v2.DefaultHapiContext;
 import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
 import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.parser.PipeParser;
 import ca.uhn.hl7v2.protocol.ReceivingApplication;
 import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
 import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
 
 public class HL7Handler implements ReceivingApplication<Message>, AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(HL7Handler.class);
-    private static final Map<String, String> TOPIC_DESCRIPTIONS = new HashMap<>();
+    private static final String PUBLISH_MODE = EnvConfig.get("KAFKA_PUBLISH_MODE", "sync");
+    private static final String STORE_FULL = "Kafka unavailable and outage store full - retry later";
+    private static final String NOT_CONFIRMED = "Kafka did not confirm the message - retry later";
+    private static final String IN_FLIGHT = "Original of this message not yet confirmed - retry later";
+    public static final String RAW_MESSAGE = "RAW_MESSAGE"; // metadata key: received frame, String or byte[]
 
     private final ProducerTemplate producer;
     private final MessageStore messageStore;
+    private final PipeParser parser;
+    private final AckBuilder ackBuilder;
+    private final PatientIdResolver patientIdResolver = new PatientIdResolver();
+    private final KafkaPairPublisher pairPublisher; // null in sync mode
+    private final KafkaCircuitBreaker breaker;
+    private final boolean passthrough = KafkaConfig.isPassthrough();
+    private final DuplicateFilter duplicates = DuplicateFilter.fromEnvironment();
+    private final RoutingTable routing;
 
-    static {
-        TOPIC_DESCRIPTIONS.put("AIP-34915", "ADT messages");
-        TOPIC_DESCRIPTIONS.put("AIP-34728", "ORU messages");
-        TOPIC_DESCRIPTIONS.put("ERROR-QUEUE", "Failed HL7 messages");
-        TOPIC_DESCRIPTIONS.put("ERROR-QUEUE-ACK", "NACK for failed HL7 messages");
+    public HL7Handler(CamelContext camel, String basePath, KafkaCircuitBreaker breaker) {
+        this(camel, basePath, breaker, RoutingTable.fromEnvironment());
     }
 
-    public HL7Handler(CamelContext camel, String basePath) {
+    public HL7Handler(CamelContext camel, String basePath, KafkaCircuitBreaker breaker, RoutingTable routing) {
         this.producer = camel.createProducerTemplate();
+        this.breaker = breaker;
+        this.routing = routing;
         this.messageStore = new MessageStore(basePath);
+        this.parser = newParser();
+        this.ackBuilder = new AckBuilder(parser);
+        if ("async".equalsIgnoreCase(PUBLISH_MODE)) {
+            this.pairPublisher = new AsyncKafkaPublisher(new KafkaSender(camel));
+        } else if ("transactional".equalsIgnoreCase(PUBLISH_MODE)) {
+            this.pairPublisher = new TransactionalKafkaPublisher(KafkaConfig.createTransactionalProducerProperties());
+        } else {
+            this.pairPublisher = null;
+        }
+    }
+
+    // For rehearse() only, as in the AppCDS training run: no producer, outage store or Kafka
+    // publisher, so nothing is bound, connected or written.
+    private HL7Handler(RoutingTable routing) {
+        this.producer = null;
+        this.breaker = null;
+        this.routing = routing;
+        this.messageStore = null;
+        this.parser = newParser();
+        this.ackBuilder = new AckBuilder(parser);
+        this.pairPublisher = null;
+    }
+
+    static HL7Handler forRehearsal() {
+        return new HL7Handler(RoutingTable.fromEnvironment());
+    }
+
+    private static PipeParser newParser() {
+        HapiContext hapi = new DefaultHapiContext();
+        hapi.setValidationContext(ValidationContextFactory.noValidation());
+        return hapi.getPipeParser();
+    }
+
+    // Header-only fast path: routing and keying use fields read from the raw frame, and the ACK
+    // is filled in from the MSH bytes. The full HAPI parse happens only when the header cannot
+    // be read.
+    public Acknowledgement processFrame(byte[] frame, HL7Header header) throws HL7Exception {
+        if (header == null || header.getMessageType() == null) {
+            LOG.warn("No MSH header found in raw frame - falling back to full parse");
+            Map<String, Object> metadata = new HashMap<>();
+            metadata.put(RAW_MESSAGE, frame);
+            Charset charset = header != null ? header.getCharset() : HL7Header.DEFAULT_CHARSET;
+            return receive(parser.parse(new String(frame, charset)), metadata);
+        }
+        Object message = passthrough ? frame : new String(frame, header.getCharset());
+
+        long routeStart = System.nanoTime();
+        String patientId = header.getPatientId() != null ? header.getPatientId() : "UNKNOWN";
+        if ("UNKNOWN".equals(patientId)) {
+            LOG.warn("No valid PID found in message");
+        }
+        String msgType = header.getMessageType();
+        Metrics.countMessageType(msgType);
+        String topic = topicFor(msgType, header.getTriggerEvent(), header.getSendingFacility(), header.getVersion());
+        Acknowledgement ack;
+        long fingerprint = DuplicateFilter.EMPTY;
+
+        try {
+            if (topic == null) {
+                topic = routing.getErrorRoute().getTopic();
+                LOG.warn("Unhandled message type: {} - routing to {}", msgType, topic);
+                ack = generateNegativeAck(frame, header.getMshLength());
+            } else {
+                ack = ackBuilder.accept(frame, header.getMshLength());
+                fingerprint = DuplicateFilter.fingerprint(header);
+            }
+        } catch (HL7Exception e) {
+            LOG.error("HL7 message processing failed", e);
+            ack = generateNegativeAck(frame, header.getMshLength());
+            topic = routing.getErrorRoute().getTopic();
+        }
+        Metrics.ROUTE.recordSince(routeStart);
+        DuplicateFilter.Reservation reservation = duplicates.reserve(fingerprint, DuplicateFilter.Source.LIVE);
+        if (reservation != DuplicateFilter.Reservation.RESERVED) {
+            return answerDuplicate(reservation, frame, ack, header.getControlId(), header.getSendingFacility());
+        }
+        return sendToKafka(frame, topic, message, patientId, ack, fingerprint);
     }
 
+    // ReceivingApplication entry point for callers that need the ACK as a HAPI message.
     @Override
     public Message processMessage(Message request, Map<String, Object> metadata) throws ReceivingApplicationException {
-        String hl7Msg = null;
+        Acknowledgement ack = receive(request, metadata);
+        try {
+            return ack != null ? parser.parse(ack.getText()) : null;
+        } catch (HL7Exception e) {
+            throw new ReceivingApplicationException(e);
+        }
+    }
+
+    // Full-parse path: the route has parsed the message, but the ACK is still filled in from the
+    // received MSH bytes (RAW_MESSAGE) when they are available.
+    public Acknowledgement receive(Message request, Map<String, Object> metadata) {
+        return receive(request, metadata, patientIdResolver.resolve(request));
+    }
+
+    // For callers that have already resolved the patient ID (null when there is none), so the
+    // message is not searched for it twice.
+    public Acknowledgement receive(Message request, Map<String, Object> metadata, String resolvedPatientId) {
         String patientId = "UNKNOWN";
         String msgType = "UNKNOWN";
         String topic;
-        Message ack;
+        Acknowledgement ack;
+        long routeStart = System.nanoTime();
 
-        try {
-            hl7Msg = request.encode();
-        } catch (HL7Exception e) {
-            LOG.error("Failed to encode HL7 message initially", e);
-            hl7Msg = metadata != null ? (String) metadata.get("RAW_MESSAGE") : "UNENCODED_MESSAGE";
+        byte[] frame = rawFrame(metadata);
+        Object message;
+        if (passthrough && frame != null) {
+            // Published as received; the parsed model only decides the route and the ACK
+            message = frame;
+        } else {
+            String hl7Msg;
+            try {
+                hl7Msg = request.encode();
+            } catch (HL7Exception e) {
+                LOG.error("Failed to encode HL7 message initially", e);
+                hl7Msg = rawMessage(metadata);
+            }
+            if (frame == null) {
+                frame = hl7Msg.getBytes(HL7Header.charsetOf(hl7Msg));
+            }
+            message = passthrough ? frame : hl7Msg;
         }
-        
+        int mshLength = AckBuilder.mshLength(frame);
+
         try {
-            Terser terser = new Terser(request);
-            msgType = terser.get("/MSH-9-1");
-
-            String[] possiblePaths = {
-                "/PID-3-1",
-                "/PATIENT_RESULT/PATIENT/PID-3-1",
-                "/PATIENT/PID-3-1"
-            };
-            for (String path : possiblePaths) {
-                try {
-                    patientId = terser.get(path);
-                    if (patientId != null && !patientId.isEmpty()) {
-                        LOG.debug("Found patientId at {}: {}", path, patientId);
-                        break;
-                    }
-                } catch (HL7Exception e) {
-                    LOG.debug("No PID at {}: {}", path, e.getMessage());
-                }
-            }
-            if ("UNKNOWN".equals(patientId)) {
+            Segment msh = (Segment) request.get("MSH");
+            msgType = Terser.get(msh, 9, 0, 1, 1);
+            Metrics.countMessageType(msgType);
+            String facility = Terser.get(msh, 4, 0, 1, 1);
+
+            if (resolvedPatientId != null) {
+                patientId = resolvedPatientId;
+            } else {
                 LOG.warn("No valid PID found in message");
             }
 
-            if ("ORU".equals(msgType)) {
-                topic = "AIP-34728";
-            } else if ("ADT".equals(msgType)) {
-                topic = "AIP-34915";
-            } else {
-                topic = "ERROR-QUEUE";
+            topic = topicFor(msgType, Terser.get(msh, 9, 0, 2, 1), facility, Terser.get(msh, 12, 0, 1, 1));
+            if (topic == null) {
+                topic = routing.getErrorRoute().getTopic();
                 LOG.warn("Unhandled message type: {} - routing to {}", msgType, topic);
-                ack = generateNegativeAck(request);
-                sendToKafka(topic, hl7Msg, patientId, ack);
-                return ack;
+                ack = generateNegativeAck(frame, mshLength);
+                Metrics.ROUTE.recordSince(routeStart);
+                return sendToKafka(frame, topic, message, patientId, ack, DuplicateFilter.EMPTY);
             }
 
-            ack = request.generateACK();
-            sendToKafka(topic, hl7Msg, patientId, ack);
-        } catch (HL7Exception | IOException e) {
+            ack = ackBuilder.accept(frame, mshLength);
+            String controlId = Terser.get(msh, 10, 0, 1, 1);
+            long fingerprint = DuplicateFilter.fingerprint(facility, controlId);
+            Metrics.ROUTE.recordSince(routeStart);
+            DuplicateFilter.Reservation reservation = duplicates.reserve(fingerprint, DuplicateFilter.Source.LIVE);
+            if (reservation != DuplicateFilter.Reservation.RESERVED) {
+                return answerDuplicate(reservation, frame, ack, controlId, facility);
+            }
+            return sendToKafka(frame, topic, message, patientId, ack, fingerprint);
+        } catch (HL7Exception e) {
             LOG.error("HL7 message processing failed", e);
-            ack = generateNegativeAck(request);
-            topic = "ERROR-QUEUE";
-            sendToKafka(topic, hl7Msg, patientId, ack);
+            ack = generateNegativeAck(frame, mshLength);
+            topic = routing.getErrorRoute().getTopic();
+            Metrics.ROUTE.recordSince(routeStart);
+        }
+        return sendToKafka(frame, topic, message, patientId, ack, DuplicateFilter.EMPTY);
+    }
+
+    // A copy of a message Kafka already has gets its AA without being published again. A copy of
+    // one still being published gets an AR: the original may yet fail, and the sender must then
+    // still hold the message.
+    private Acknowledgement answerDuplicate(DuplicateFilter.Reservation reservation, byte[] frame,
+                                            Acknowledgement ack, String controlId, String facility) {
+        if (reservation == DuplicateFilter.Reservation.IN_FLIGHT) {
+            LOG.info("Message {} from {} is still being published - rejecting the copy", controlId, facility);
+            return rejectFrame(frame, IN_FLIGHT);
         }
+        LOG.info("Duplicate message {} from {} - acknowledged without publishing", controlId, facility);
         return ack;
     }
 
-    private void sendToKafka(String topic, String message, String patientId, Message ack) {
-        boolean kafkaSuccess = false;
+    // Startup warm-up: everything processFrame and receive do to a message except publishing it,
+    // recording metrics or remembering it as a duplicate.
+    Acknowledgement rehearse(byte[] frame) throws HL7Exception {
+        HL7Header header = HL7Header.extract(frame, frame.length);
+        DuplicateFilter.fingerprint(header);
+        Message message = parser.parse(new String(frame,
+            header != null ? header.getCharset() : HL7Header.DEFAULT_CHARSET));
+        Segment msh = (Segment) message.get("MSH");
+        Terser.get(msh, 9, 0, 1, 1);
+        Terser.get(msh, 10, 0, 1, 1);
+        patientIdResolver.resolve(message);
+        int mshLength = header != null ? header.getMshLength() : AckBuilder.mshLength(frame);
+        ackBuilder.error(frame, mshLength, "Warm-up");
+        ackBuilder.reject(frame, mshLength, "Warm-up");
+        return ackBuilder.accept(frame, mshLength);
+    }
+
+    private static String rawMessage(Map<String, Object> metadata) {
+        Object raw = metadata != null ? metadata.get(RAW_MESSAGE) : null;
+        if (raw instanceof byte[]) {
+            byte[] frame = (byte[]) raw;
+            return new String(frame, HL7Header.charsetOf(frame, frame.length));
+        }
+        return raw != null ? raw.toString() : "UNENCODED_MESSAGE";
+    }
+
+    private static byte[] rawFrame(Map<String, Object> metadata) {
+        Object raw = metadata != null ? metadata.get(RAW_MESSAGE) : null;
+        return raw instanceof byte[] ? (byte[]) raw : null;
+    }
+
+    // null when no routing rule matches; the message then goes to the error topic
+    private String topicFor(String msgType, String trigger, String facility, String version) {
+        RoutingTable.Route route = routing.route(msgType, trigger, facility, version);
+        return route != null ? route.getTopic() : null;
+    }
+
+    // The message is the frame bytes in passthrough mode and the message text otherwise; the ACK
+    // follows the same choice. Returns the ACK, or an AR when Kafka failed and the outage store
+    // refused the message as well, or when Kafka may still publish a message it did not confirm.
+    // The fingerprint was reserved when the message was admitted; it is confirmed once Kafka has
+    // the message and released otherwise, so a stored copy is reserved again when it is replayed.
+    private Acknowledgement sendToKafka(byte[] frame, String topic, Object message, String patientId,
+                                        Acknowledgement ack, long fingerprint) {
+        Metrics.countTopic(topic);
+        if (!breaker.allowRequest()) {
+            Metrics.countKafkaSend("short_circuited");
+            duplicates.release(fingerprint);
+            // Kafka is known to be down: skip the producer timeouts and store straight away
+            if (!store(topic, patientId, message, ack)) {
+                return rejectFrame(frame, STORE_FULL);
+            }
+            LOG.info("Kafka circuit open - stored message locally: topic={}, patientId={}", topic, patientId);
+            return ack;
+        }
+
+        if (pairPublisher != null) {
+            long start = System.nanoTime();
+            KafkaPairPublisher.Result result;
+            try {
+                result = pairPublisher.publish(topic, message, topic + "-ACK", ackPayload(ack), patientId);
+            } catch (RuntimeException e) {
+                LOG.warn("Kafka publish failed for topic={}, patientId={}: {}", topic, patientId, e.getMessage());
+                result = KafkaPairPublisher.Result.NOT_PUBLISHED;
+            }
+            Metrics.KAFKA_SEND.recordSince(start);
+            breaker.record(result == KafkaPairPublisher.Result.CONFIRMED);
+            switch (result) {
+                case CONFIRMED:
+                    Metrics.countKafkaSend("ok");
+                    duplicates.confirm(fingerprint);
+                    LOG.debug("Sent message and ACK to Kafka: topic={}, patientId={}", topic, patientId);
+                    return ack;
+                case IN_DOUBT:
+                    // Storing it too could publish it twice; the sender retries it instead
+                    Metrics.countKafkaSend("in_doubt");
+                    duplicates.release(fingerprint);
+                    LOG.warn("Kafka outcome unknown - rejecting message: topic={}, patientId={}", topic, patientId);
+                    return rejectFrame(frame, NOT_CONFIRMED);
+                default:
+                    Metrics.countKafkaSend("failed");
+                    duplicates.release(fingerprint);
+                    if (!store(topic, patientId, message, ack)) {
+                        return rejectFrame(frame, STORE_FULL);
+                    }
+                    LOG.info("Stored message locally due to Kafka failure: topic={}, patientId={}", topic, patientId);
+                    return ack;
+            }
+        }
+
+        long start = System.nanoTime();
         try {
             // Try sending to Kafka with fail-fast settings from KafkaConfig
             producer.sendBodyAndHeader("kafka:" + topic, message, "kafka.KEY", patientId);
-            kafkaSuccess = true; // Only set if Kafka write succeeds
             LOG.debug("Sent message to Kafka: topic={}, patientId={}", topic, patientId);
 
             if (ack != null) {
-                String ackMsg = ack.encode();
                 String ackTopic = topic + "-ACK";
-                producer.sendBodyAndHeader("kafka:" + ackTopic, ackMsg, "kafka.KEY", patientId);
-                LOG.info("Sent ACK to Kafka: topic={}, patientId={}", ackTopic, patientId);
+                producer.sendBodyAndHeader("kafka:" + ackTopic, ackPayload(ack), "kafka.KEY", patientId);
+                LOG.debug("Sent ACK to Kafka: topic={}, patientId={}", ackTopic, patientId);
             }
+            Metrics.KAFKA_SEND.recordSince(start);
+            Metrics.countKafkaSend("ok");
+            breaker.recordSuccess();
+            duplicates.confirm(fingerprint);
         } catch (Exception e) {
+            Metrics.KAFKA_SEND.recordSince(start);
+            Metrics.countKafkaSend("failed");
+            breaker.recordFailure();
+            duplicates.release(fingerprint);
             LOG.warn("Kafka write failed for topic={}, patientId={}: {}", topic, patientId, e.getMessage());
             // Fallback to local storage immediately on Kafka failure
-            try {
-                String ackMsg = ack != null ? ack.encode() : null;
-                messageStore.save(topic, message, ackMsg);
-                LOG.info("Stored message locally due to Kafka failure: topic={}, patientId={}", topic, patientId);
-            } catch (HL7Exception ex) {
-                LOG.error("Failed to encode ACK for storage: {}", ex.getMessage());
-                throw new RuntimeException("Critical failure: Could not store message or ACK", ex);
+            if (!store(topic, patientId, message, ack)) {
+                return rejectFrame(frame, STORE_FULL);
             }
+            LOG.info("Stored message locally due to Kafka failure: topic={}, patientId={}", topic, patientId);
         }
-        // If Kafka failed but storage succeeded, no exception thrown - message is safe
-        if (!kafkaSuccess && !messageStoreFailed(topic, message)) {
-            LOG.debug("Message safely stored after Kafka failure: patientId={}", patientId);
-        }
+        return ack;
     }
 
-    private boolean messageStoreFailed(String topic, String message) {
-        // Simple check - if save() didn't throw, assume success
-        // Could enhance with explicit store verification if needed
-        return false;
+    private Object ackPayload(Acknowledgement ack) {
+        return ack == null ? null : passthrough ? ack.getBytes() : ack.getText();
     }
 
-    private Message generateNegativeAck(Message request) {
+    private boolean store(String topic, String patientId, Object message, Acknowledgement ack) {
+        if (message instanceof byte[]) {
+            return messageStore.save(topic, patientId, (byte[]) message, ack != null ? ack.getBytes() : null);
+        }
+        return messageStore.save(topic, patientId, (String) message, ack != null ? ack.getText() : null);
+    }
+
+    private Acknowledgement generateNegativeAck(byte[] frame, int mshLength) {
         try {
-            Message ack = request.generateACK();
-            Terser terser = new Terser(ack);
-            terser.set("/MSA-1", "AE");
-            terser.set("/MSA-2", new Terser(request).get("/MSH-10"));
-            terser.set("/MSA-3", "Message processing error - Unsupported message type");
-            return ack;
-        } catch (HL7Exception | IOException e) {
+            return ackBuilder.error(frame, mshLength, "Message processing error - Unsupported message type");
+        } catch (HL7Exception e) {
             LOG.error("Failed to generate Negative ACK: {}", e.getMessage());
             return null;
         }
     }
 
+    // AR for a message refused before processing; the sender keeps it and retries later.
+    // Built from the MSH segment alone, since refused messages are never parsed in full.
+    public Acknowledgement rejectFrame(byte[] frame, String reason) {
+        try {
+            return ackBuilder.reject(frame, AckBuilder.mshLength(frame), reason);
+        } catch (HL7Exception e) {
+            LOG.error("Failed to generate reject ACK: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicates;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routing;
+    }
+
+    public PatientIdResolver getPatientIdResolver() {
+        return patientIdResolver;
+    }
+
     @Override
     public boolean canProcess(Message message) {
         return true;
@@ -155,6 +399,14 @@ public class HL7Handler implements ReceivingApplication<Message>, AutoCloseable
 
     @Override
     public void close() {
-        producer.stop();
+        if (producer != null) {
+            producer.stop();
+        }
+        if (pairPublisher != null) {
+            pairPublisher.close();
+        }
+        if (messageStore != null) {
+            messageStore.close();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,261 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// The handful of header fields routing and Kafka keying need, read straight from the
+// raw segment bytes. Only the extracted values are materialized as Strings.
+public final class HL7Header {
+    // What HL7DataFormat decodes with when MSH-18 is empty: the JVM default, UTF-8 since Java 18
+    public static final Charset DEFAULT_CHARSET = Charset.defaultCharset();
+
+    // HL7 table 0211 names that are not Java charset names
+    private static final Map<String, String> HL7_CHARSETS = new HashMap<>();
+
+    static {
+        HL7_CHARSETS.put("ASCII", "US-ASCII");
+        for (int part : new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 15}) {
+            HL7_CHARSETS.put("8859/" + part, "ISO-8859-" + part);
+        }
+        HL7_CHARSETS.put("ISO IR14", "JIS_X0201");
+        HL7_CHARSETS.put("ISO IR87", "x-JIS0208");
+        HL7_CHARSETS.put("ISO IR159", "JIS_X0212-1990");
+        HL7_CHARSETS.put("GB 18030-2000", "GB18030");
+        HL7_CHARSETS.put("KS X 1001", "EUC-KR");
+        HL7_CHARSETS.put("CNS 11643-1992", "x-EUC-TW");
+        HL7_CHARSETS.put("BIG-5", "Big5");
+        HL7_CHARSETS.put("UNICODE", "UTF-8");
+        HL7_CHARSETS.put("UNICODE UTF-8", "UTF-8");
+        HL7_CHARSETS.put("UNICODE UTF-16", "UTF-16");
+        HL7_CHARSETS.put("UNICODE UTF-32", "UTF-32");
+    }
+
+    private final String sendingApplication;
+    private final String sendingFacility;
+    private final String messageType;
+    private final String triggerEvent;
+    private final String messageStructure;
+    private final String controlId;
+    private final String version;
+    private final String patientId;
+    private final int mshLength;
+    private final Charset charset;
+
+    private HL7Header(String sendingApplication, String sendingFacility, String messageType, String triggerEvent,
+                      String messageStructure, String controlId, String version, String patientId, int mshLength,
+                      Charset charset) {
+        this.sendingApplication = sendingApplication;
+        this.sendingFacility = sendingFacility;
+        this.messageType = messageType;
+        this.triggerEvent = triggerEvent;
+        this.messageStructure = messageStructure;
+        this.controlId = controlId;
+        this.version = version;
+        this.patientId = patientId;
+        this.mshLength = mshLength;
+        this.charset = charset;
+    }
+
+    // Returns null when the frame does not start with an MSH segment.
+    public static HL7Header extract(byte[] frame, int length) {
+        if (length < 8 || frame[0] != 'M' || frame[1] != 'S' || frame[2] != 'H') {
+            return null;
+        }
+        byte fieldSep = frame[3];
+        byte componentSep = frame[4];
+        byte repetitionSep = frame[5];
+        Charset charset = charsetOf(frame, length);
+
+        String sendingApplication = null;
+        String sendingFacility = null;
+        String messageType = null;
+        String triggerEvent = null;
+        String messageStructure = null;
+        String controlId = null;
+        String version = null;
+
+        // MSH-1 is the separator itself, so the field after it is MSH-2
+        int field = 2;
+        int start = 4;
+        int pos = 4;
+        while (pos <= length) {
+            byte b = pos < length ? frame[pos] : (byte) '\r';
+            if (b == fieldSep || b == '\r' || b == '\n') {
+                switch (field) {
+                    case 3:
+                        sendingApplication = component(frame, start, pos, componentSep, repetitionSep, 0, charset);
+                        break;
+                    case 4:
+                        sendingFacility = component(frame, start, pos, componentSep, repetitionSep, 0, charset);
+                        break;
+                    case 9:
+                        messageType = component(frame, start, pos, componentSep, repetitionSep, 0, charset);
+                        triggerEvent = component(frame, start, pos, componentSep, repetitionSep, 1, charset);
+                        messageStructure = component(frame, start, pos, componentSep, repetitionSep, 2, charset);
+                        break;
+                    case 10:
+                        controlId = component(frame, start, pos, componentSep, repetitionSep, 0, charset);
+                        break;
+                    case 12:
+                        version = component(frame, start, pos, componentSep, repetitionSep, 0, charset);
+                        break;
+                    default:
+                        break;
+                }
+                if (b != fieldSep) {
+                    break;
+                }
+                field++;
+                start = pos + 1;
+            }
+            pos++;
+        }
+        int mshLength = Math.min(pos, length);
+
+        return new HL7Header(sendingApplication, sendingFacility, messageType, triggerEvent, messageStructure,
+            controlId, version, findPatientId(frame, mshLength, length, fieldSep, componentSep, repetitionSep, charset),
+            mshLength, charset);
+    }
+
+    // The charset MSH-18 names, or DEFAULT_CHARSET when it is empty or names one this JVM lacks.
+    // Separators and MSH-18 itself are ASCII in every single-byte and UTF-8 encoding.
+    public static Charset charsetOf(byte[] frame, int length) {
+        if (length < 8 || frame[0] != 'M' || frame[1] != 'S' || frame[2] != 'H') {
+            return DEFAULT_CHARSET;
+        }
+        byte fieldSep = frame[3];
+        int field = 2;
+        int start = 4;
+        for (int pos = 4; pos <= length; pos++) {
+            byte b = pos < length ? frame[pos] : (byte) '\r';
+            if (b == fieldSep || b == '\r' || b == '\n') {
+                if (field == 18) {
+                    String name = component(frame, start, pos, frame[4], frame[5], 0, StandardCharsets.US_ASCII);
+                    return forHl7Name(name);
+                }
+                if (b != fieldSep) {
+                    break;
+                }
+                field++;
+                start = pos + 1;
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    // The same for a message that is already text, e.g. one HAPI encoded or the legacy store kept.
+    public static Charset charsetOf(String message) {
+        int end = 0;
+        while (end < message.length() && message.charAt(end) != '\r' && message.charAt(end) != '\n') {
+            end++;
+        }
+        byte[] msh = message.substring(0, end).getBytes(StandardCharsets.ISO_8859_1);
+        return charsetOf(msh, msh.length);
+    }
+
+    static Charset forHl7Name(String name) {
+        if (name == null || name.isBlank()) {
+            return DEFAULT_CHARSET;
+        }
+        String trimmed = name.trim();
+        try {
+            return Charset.forName(HL7_CHARSETS.getOrDefault(trimmed.toUpperCase(Locale.ROOT), trimmed));
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_CHARSET;
+        }
+    }
+
+    // PID-3-1 of the first PID segment, wherever it sits in the message structure.
+    private static String findPatientId(byte[] frame, int from, int length, byte fieldSep, byte componentSep,
+                                        byte repetitionSep, Charset charset) {
+        for (int pos = from; pos + 4 < length; pos++) {
+            byte b = frame[pos];
+            if ((b == '\r' || b == '\n') && frame[pos + 1] == 'P' && frame[pos + 2] == 'I'
+                    && frame[pos + 3] == 'D' && frame[pos + 4] == fieldSep) {
+                int field = 0;
+                int start = pos + 5;
+                for (int p = start; p <= length; p++) {
+                    byte c = p < length ? frame[p] : (byte) '\r';
+                    if (c == fieldSep || c == '\r' || c == '\n') {
+                        field++;
+                        if (field == 3) {
+                            return component(frame, start, p, componentSep, repetitionSep, 0, charset);
+                        }
+                        if (c != fieldSep) {
+                            return null;
+                        }
+                        start = p + 1;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Component n of frame[start..end), stopping at the first repetition; null when empty.
+    private static String component(byte[] frame, int start, int end, byte componentSep, byte repetitionSep, int n,
+                                    Charset charset) {
+        int index = 0;
+        int from = start;
+        for (int p = start; p <= end; p++) {
+            byte b = p < end ? frame[p] : componentSep;
+            if (b == componentSep || b == repetitionSep) {
+                if (index == n) {
+                    return p > from ? new String(frame, from, p - from, charset) : null;
+                }
+                if (b == repetitionSep) {
+                    return null;
+                }
+                index++;
+                from = p + 1;
+            }
+        }
+        return null;
+    }
+
+    public String getSendingApplication() {
+        return sendingApplication;
+    }
+
+    public String getSendingFacility() {
+        return sendingFacility;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getTriggerEvent() {
+        return triggerEvent;
+    }
+
+    public String getMessageStructure() {
+        return messageStructure;
+    }
+
+    public String getControlId() {
+        return controlId;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    // Length of the MSH segment in the frame, excluding its terminator.
+    public int getMshLength() {
+        return mshLength;
+    }
+
+    // What the frame is decoded with before it is published as text.
+    public Charset getCharset() {
+        return charset;
+    }
+}
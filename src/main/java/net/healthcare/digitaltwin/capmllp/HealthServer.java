@@ -11,12 +11,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class HealthServer {
     private static final Logger LOG = LoggerFactory.getLogger(HealthServer.class);
+    private static final long SNAPSHOT_STALE_MS = EnvConfig.getLong("HEALTH_SNAPSHOT_STALE_MS", 30_000);
+    private static final boolean READY_REQUIRES_KAFKA = EnvConfig.getBoolean("READY_REQUIRES_KAFKA", false);
     private final HttpsServer server;
+    private final ExecutorService executor;
+    private volatile HealthSnapshot snapshot = HealthSnapshot.starting();
     private static final String CERT_PATH = "/etc/mllp/secrets/";
     private static final String SERVICE_NAME = System.getenv("KUBERNETES_SERVICE_NAME");
     private static final String NAMESPACE = System.getenv("KUBERNETES_NAMESPACE");
@@ -54,7 +61,42 @@ public class HealthServer {
                 os.write(response.getBytes());
             }
         });
-        server.setExecutor(null); // Default executor
+        // Readiness and liveness answer from the last published snapshot only
+        server.createContext("/ready", exchange -> {
+            HealthSnapshot current = snapshot;
+            String reason = current.notReadyReason(System.currentTimeMillis(), SNAPSHOT_STALE_MS, READY_REQUIRES_KAFKA);
+            byte[] body = ((reason == null ? "READY" : "NOT READY: " + reason) + "\n" + current)
+                .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(reason == null ? 200 : 503, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/live", exchange -> {
+            HealthSnapshot current = snapshot;
+            boolean live = current.isLive(System.currentTimeMillis(), SNAPSHOT_STALE_MS);
+            byte[] body = ((live ? "LIVE" : "NOT LIVE") + "\n" + current).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(live ? 200 : 503, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        if (Metrics.ENABLED) {
+            server.createContext("/metrics", exchange -> {
+                byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+        }
+
+        // Own threads, so a slow scrape does not hold up a probe; a virtual thread per request in
+        // virtual-thread mode
+        executor = ThreadSupport.VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(2, ThreadSupport.factory("health-http"));
+        server.setExecutor(executor);
     }
 
     public void start() {
@@ -62,8 +104,13 @@ public class HealthServer {
         server.start();
     }
 
+    public void update(HealthSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     public void stop() {
         LOG.info("Stopping HTTPS health server");
         server.stop(0);
+        executor.shutdownNow();
     }
 }
\ No newline at end of file
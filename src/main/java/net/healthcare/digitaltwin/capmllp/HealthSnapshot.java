@@ -0,0 +1,84 @@
+package net.healthcare.digitaltwin.capmllp;
+
+// Immutable view of the service state that the /ready and /live probes answer from. ServerManager
+// builds one every HEALTH_SNAPSHOT_INTERVAL_MS once Camel has started and publishes it to
+// HealthServer through a volatile field, so a probe reads one reference and never touches a lock
+// the ingestion threads use. Readiness rests on local signals by default: Kafka being down is what
+// the outage store is for, and an outage seen by every replica must not make all of them unready.
+final class HealthSnapshot {
+    private final long takenAt;
+    private final boolean started;
+    private final boolean camelStarted;
+    private final boolean kafkaOperational;
+    private final boolean outageFull;
+    private final long outageUsedBytes;
+    private final long outageMaxBytes;
+    private final AdmissionController.Level admission;
+    private final int inFlight;
+    private final int limit;
+    private final int listenersUp;
+    private final int listeners;
+
+    HealthSnapshot(long takenAt, boolean started, boolean camelStarted, boolean kafkaOperational,
+                   boolean outageFull, long outageUsedBytes, long outageMaxBytes, AdmissionController.Level admission,
+                   int inFlight, int limit, int listenersUp, int listeners) {
+        this.takenAt = takenAt;
+        this.started = started;
+        this.camelStarted = camelStarted;
+        this.kafkaOperational = kafkaOperational;
+        this.outageFull = outageFull;
+        this.outageUsedBytes = outageUsedBytes;
+        this.outageMaxBytes = outageMaxBytes;
+        this.admission = admission;
+        this.inFlight = inFlight;
+        this.limit = limit;
+        this.listenersUp = listenersUp;
+        this.listeners = listeners;
+    }
+
+    // Until the first refresh after startup: alive, however long warm-up takes, and not ready.
+    static HealthSnapshot starting() {
+        return new HealthSnapshot(System.currentTimeMillis(), false, false, false, false, 0, 0,
+            AdmissionController.Level.ADMIT, 0, 0, 0, 0);
+    }
+
+    // Why the pod should not receive new connections, or null when it should.
+    String notReadyReason(long now, long staleMs, boolean requireKafka) {
+        if (!started) {
+            return "starting";
+        }
+        if (now - takenAt > staleMs) {
+            return "health snapshot stale";
+        }
+        if (requireKafka && !kafkaOperational) {
+            return "Kafka unavailable";
+        }
+        if (outageFull) {
+            return "outage store full";
+        }
+        if (admission.compareTo(AdmissionController.Level.REJECT) >= 0) {
+            return "overloaded (admission " + admission + ")";
+        }
+        if (listenersUp < listeners) {
+            return "MLLP listeners down (" + listenersUp + " of " + listeners + " started)";
+        }
+        return null;
+    }
+
+    // Alive while starting, then while snapshots keep coming and Camel is still running.
+    boolean isLive(long now, long staleMs) {
+        return !started || (now - takenAt <= staleMs && camelStarted);
+    }
+
+    @Override
+    public String toString() {
+        return "kafka=" + (kafkaOperational ? "UP" : "DOWN")
+            + "\noutage_used_bytes=" + outageUsedBytes
+            + "\noutage_max_bytes=" + outageMaxBytes
+            + "\noutage_full=" + outageFull
+            + "\nadmission=" + admission
+            + "\nin_flight=" + inFlight + "/" + limit
+            + "\nlisteners=" + listenersUp + "/" + listeners
+            + "\nage_ms=" + (System.currentTimeMillis() - takenAt) + "\n";
+    }
+}
@@ -0,0 +1,230 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.DescribeClusterOptions;
+import org.apache.kafka.common.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Shared view of Kafka availability, fed by the results of real sends. After enough consecutive
+// failures the breaker opens and callers skip Kafka entirely, so live messages go straight to the
+// outage store instead of each waiting out the producer timeouts. While open, a background probe
+// asks the cluster (any broker in KAFKA_BOOTSTRAP_SERVERS) for its metadata; when that answers,
+// or the open period expires, the breaker goes half-open and lets a single trial send through:
+// a live message, or a replay run when there is no live traffic. Only a successful trial closes it.
+public class KafkaCircuitBreaker implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong trialStartedAt = new AtomicLong(); // 0 when no trial is in flight
+    private final AtomicLong lastTrial = new AtomicLong();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final List<Consumer<State>> listeners = new CopyOnWriteArrayList<>();
+    private final int failureThreshold;
+    private final long openMs;
+    private final long probeIntervalMs;
+    private final long trialTimeoutMs;
+    private final Properties adminProperties;
+    private volatile long openedAt;
+    private ScheduledExecutorService prober;
+    private AdminClient admin;
+
+    public KafkaCircuitBreaker(Properties adminProperties) {
+        this.adminProperties = adminProperties;
+        this.failureThreshold = Math.max(1, EnvConfig.getInt("KAFKA_BREAKER_FAILURES", 3));
+        this.openMs = EnvConfig.getLong("KAFKA_BREAKER_OPEN_MS", 5000);
+        this.probeIntervalMs = EnvConfig.getLong("KAFKA_BREAKER_PROBE_MS", 2000);
+        this.trialTimeoutMs = EnvConfig.getLong("KAFKA_BREAKER_TRIAL_TIMEOUT_MS", 5000);
+    }
+
+    public void start() {
+        if (adminProperties == null || probeIntervalMs <= 0) {
+            return;
+        }
+        prober = Executors.newSingleThreadScheduledExecutor(ThreadSupport.factory("kafka-breaker-probe"));
+        prober.scheduleWithFixedDelay(this::probe, probeIntervalMs, probeIntervalMs, TimeUnit.MILLISECONDS);
+        LOG.info("Kafka circuit breaker: opens after {} failures, trial after {}ms, metadata probe every {}ms",
+            failureThreshold, openMs, probeIntervalMs);
+    }
+
+    // Whether a live send should go to Kafka. Every allowed send must be followed by
+    // recordSuccess or recordFailure.
+    public boolean allowRequest() {
+        if (tryRequest()) {
+            return true;
+        }
+        shortCircuited.increment();
+        return false;
+    }
+
+    // For a replay run, which has no message to short-circuit, while the circuit is not closed:
+    // the single trial as a token for releaseTrial, or 0 when the circuit is closed, still open,
+    // or the trial is taken. The run's first results decide the state.
+    public long tryAcquireTrial() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (current == State.OPEN) {
+            if (now - openedAt < openMs) {
+                return 0;
+            }
+            transition(State.OPEN, State.HALF_OPEN);
+        }
+        // Half-open: a single trial at a time; an abandoned trial frees the slot after a timeout
+        long started = trialStartedAt.get();
+        if (started != 0 && now - started <= trialTimeoutMs) {
+            return 0;
+        }
+        // Strictly increasing, so the token of a finished trial never matches a later one
+        long token = Math.max(now, lastTrial.get() + 1);
+        if (!trialStartedAt.compareAndSet(started, token)) {
+            return 0;
+        }
+        lastTrial.accumulateAndGet(token, Math::max);
+        return token;
+    }
+
+    private boolean tryRequest() {
+        return state.get() == State.CLOSED || tryAcquireTrial() != 0;
+    }
+
+    // Gives the trial back when its holder sent nothing, so the next send can be the trial. Does
+    // nothing once the trial has been decided, or has timed out and been taken by another send.
+    public void releaseTrial(long token) {
+        if (token != 0) {
+            trialStartedAt.compareAndSet(token, 0);
+        }
+    }
+
+    // Only a closed circuit means Kafka has recovered; half-open is still an outage.
+    public boolean isClosed() {
+        return state.get() == State.CLOSED;
+    }
+
+    // Whether replay may keep publishing: it stops as soon as the circuit opens, but continues
+    // through half-open while its own trial is deciding.
+    public boolean isAvailable() {
+        return state.get() != State.OPEN;
+    }
+
+    public void record(boolean success) {
+        if (success) {
+            recordSuccess();
+        } else {
+            recordFailure();
+        }
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        trialStartedAt.set(0);
+        if (state.get() != State.CLOSED) {
+            transition(State.HALF_OPEN, State.CLOSED);
+            transition(State.OPEN, State.CLOSED);
+        }
+    }
+
+    public void recordFailure() {
+        trialStartedAt.set(0);
+        if (state.get() == State.HALF_OPEN) {
+            open(State.HALF_OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public long getShortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    public void addListener(Consumer<State> listener) {
+        listeners.add(listener);
+    }
+
+    private void open(State from) {
+        openedAt = System.currentTimeMillis();
+        transition(from, State.OPEN);
+    }
+
+    private void transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) {
+            return;
+        }
+        if (to == State.OPEN && from == State.HALF_OPEN) {
+            LOG.warn("Kafka trial send failed - circuit OPEN again");
+        } else if (to == State.OPEN) {
+            LOG.warn("Kafka circuit OPEN after {} consecutive failures - sending messages straight to the outage store",
+                consecutiveFailures.get());
+        } else {
+            LOG.info("Kafka circuit {} (was {})", to, from);
+        }
+        for (Consumer<State> listener : listeners) {
+            try {
+                listener.accept(to);
+            } catch (RuntimeException e) {
+                LOG.error("Circuit breaker listener failed", e);
+            }
+        }
+    }
+
+    private void probe() {
+        if (state.get() != State.OPEN) {
+            return;
+        }
+        try {
+            if (admin == null) {
+                Properties props = new Properties();
+                props.putAll(adminProperties);
+                props.put(AdminClientConfig.REQUEST_TIMEOUT_MS_CONFIG, (int) probeIntervalMs);
+                props.put(AdminClientConfig.DEFAULT_API_TIMEOUT_MS_CONFIG, (int) probeIntervalMs);
+                admin = AdminClient.create(props);
+            }
+            DescribeClusterOptions options = new DescribeClusterOptions().timeoutMs((int) probeIntervalMs);
+            Collection<Node> nodes = admin.describeCluster(options).nodes()
+                .get(probeIntervalMs, TimeUnit.MILLISECONDS);
+            if (!nodes.isEmpty()) {
+                LOG.info("Kafka metadata answered with {} broker(s) - allowing a trial send", nodes.size());
+                transition(State.OPEN, State.HALF_OPEN);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.debug("Kafka metadata probe failed: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        if (admin != null) {
+            admin.close();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package net.healthcare.digitaltwin.capmllp;
 
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -14,8 +14,11 @@ import org.apache.camel.component.kafka.KafkaConfiguration;
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.NewTopic;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class KafkaConfig {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaConfig.class);
     private static final String BROKER_ADDRESS = System.getenv("KAFKA_BOOTSTRAP_SERVERS") != null 
         ? System.getenv("KAFKA_BOOTSTRAP_SERVERS") 
         : "curis-data-broker.site-a.svc.cluster.local:31002";
@@ -29,6 +32,43 @@ public class KafkaConfig {
     private static final String NAMESPACE = System.getenv("KUBERNETES_NAMESPACE");
     private static final String TRUSTSTORE_FILE = "truststore.jks";
 
+    // Producer tuning; the fail-fast defaults match the original hardcoded values
+    private static final int MAX_BLOCK_MS = EnvConfig.getInt("KAFKA_MAX_BLOCK_MS", 100);
+    private static final int REQUEST_TIMEOUT_MS = EnvConfig.getInt("KAFKA_REQUEST_TIMEOUT_MS", 150);
+    private static final int LINGER_MS = EnvConfig.getInt("KAFKA_LINGER_MS", 0);
+    private static final int BATCH_SIZE = EnvConfig.getInt("KAFKA_BATCH_SIZE", 16384);
+    private static final int MAX_IN_FLIGHT = EnvConfig.getInt("KAFKA_MAX_IN_FLIGHT", 5);
+    private static final String COMPRESSION_TYPE = EnvConfig.get("KAFKA_COMPRESSION_TYPE", "snappy");
+    // Publish the received frame bytes as they are instead of the message re-encoded as a String
+    private static final boolean PASSTHROUGH = EnvConfig.getBoolean("KAFKA_PASSTHROUGH", false);
+    // The producer rejects delivery.timeout.ms < linger.ms + request.timeout.ms
+    private static final int DELIVERY_TIMEOUT_MS = Math.max(
+        EnvConfig.getInt("KAFKA_DELIVERY_TIMEOUT_MS", 200), LINGER_MS + REQUEST_TIMEOUT_MS);
+    // Transactional publishing: initTransactions and commitTransaction block for up to
+    // max.block.ms, and a commit needs a coordinator round-trip, so this is its own setting
+    private static final int TXN_MAX_BLOCK_MS = EnvConfig.getInt("KAFKA_TXN_MAX_BLOCK_MS", 1000);
+    private static final int TXN_TIMEOUT_MS = EnvConfig.getInt("KAFKA_TXN_TIMEOUT_MS", 10_000);
+
+    public static int getDeliveryTimeoutMs() {
+        return DELIVERY_TIMEOUT_MS;
+    }
+
+    public static int getMaxBlockMs() {
+        return MAX_BLOCK_MS;
+    }
+
+    public static String getCompressionType() {
+        return COMPRESSION_TYPE;
+    }
+
+    public static boolean isPassthrough() {
+        return PASSTHROUGH;
+    }
+
+    public static int getTxnMaxBlockMs() {
+        return TXN_MAX_BLOCK_MS;
+    }
+
     public static KafkaComponent createKafkaComponent() {
         KafkaComponent kafka = new KafkaComponent();
         KafkaConfiguration config = new KafkaConfiguration();
@@ -38,11 +78,17 @@ public class KafkaConfig {
 
         // Fail-fast producer configuration
         Map<String, Object> producerProps = new HashMap<>();
-        producerProps.put("max.block.ms", "100");
-        producerProps.put("delivery.timeout.ms", "200");
-        producerProps.put("request.timeout.ms", "150");
+        producerProps.put("max.block.ms", String.valueOf(MAX_BLOCK_MS));
+        producerProps.put("delivery.timeout.ms", String.valueOf(DELIVERY_TIMEOUT_MS));
+        producerProps.put("request.timeout.ms", String.valueOf(REQUEST_TIMEOUT_MS));
         producerProps.put("retries", "1");
-        producerProps.put("compression.type", "snappy");
+
+        // Batching, mainly useful with KAFKA_PUBLISH_MODE=async where sends overlap
+        producerProps.put("linger.ms", String.valueOf(LINGER_MS));
+        producerProps.put("batch.size", String.valueOf(BATCH_SIZE));
+        // Idempotence requires at most 5 in-flight requests per connection
+        producerProps.put("max.in.flight.requests.per.connection", String.valueOf(Math.min(MAX_IN_FLIGHT, 5)));
+        producerProps.put("compression.type", COMPRESSION_TYPE);
         producerProps.put("auto.create.topics.enable", "true");
 
         // Enable strong durability
@@ -54,26 +100,68 @@ public class KafkaConfig {
         additionalProps.putAll(producerProps); // Combine with producer props
         config.setAdditionalProperties(additionalProps);
 
-        // Serialization settings
+        // Serialization settings. In passthrough mode values are byte[]; String bodies (ACKs,
+        // legacy replay files) are converted by the component.
         config.setKeySerializer("org.apache.kafka.common.serialization.StringSerializer");
-        config.setValueSerializer("org.apache.kafka.common.serialization.StringSerializer");
+        config.setValueSerializer(PASSTHROUGH
+            ? "org.apache.kafka.common.serialization.ByteArraySerializer"
+            : "org.apache.kafka.common.serialization.StringSerializer");
 
         kafka.setConfiguration(config);
         return kafka;
     }
     
-    public static void verifyTopicsExist() {
+    public static Properties createAdminProperties() {
         Properties props = new Properties();
         props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, BROKER_ADDRESS);
         props.putAll(getSslProperties()); // Use shared SSL config
+        return props;
+    }
+
+    // Producer for KAFKA_PUBLISH_MODE=transactional. Values are always byte[]; String bodies are
+    // encoded as UTF-8 by the publisher, as StringSerializer would.
+    public static Properties createTransactionalProducerProperties() {
+        Properties props = new Properties();
+        props.putAll(getSslProperties());
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, BROKER_ADDRESS);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, "org.apache.kafka.common.serialization.StringSerializer");
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+            "org.apache.kafka.common.serialization.ByteArraySerializer");
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
+        props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+        props.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG, transactionalId());
+        props.put(ProducerConfig.TRANSACTION_TIMEOUT_CONFIG, String.valueOf(TXN_TIMEOUT_MS));
+        props.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, String.valueOf(Math.max(MAX_BLOCK_MS, TXN_MAX_BLOCK_MS)));
+        props.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, String.valueOf(REQUEST_TIMEOUT_MS));
+        props.put(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, String.valueOf(DELIVERY_TIMEOUT_MS));
+        props.put(ProducerConfig.LINGER_MS_CONFIG, String.valueOf(LINGER_MS));
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, String.valueOf(BATCH_SIZE));
+        props.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, String.valueOf(Math.min(MAX_IN_FLIGHT, 5)));
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, COMPRESSION_TYPE);
+        return props;
+    }
 
-        try (AdminClient admin = AdminClient.create(props)) {
-            List<String> requiredTopics = Arrays.asList(
-                "AIP-34915", "AIP-34915-ACK", 
-                "AIP-34728", "AIP-34728-ACK",
-                "ERROR-QUEUE", "ERROR-QUEUE-ACK"
-            );
+    // The transactional.id must be unique per pod and stay the same when a pod is replaced, or the
+    // new producer does not fence the old one. A StatefulSet ordinal (POD_INDEX, from the
+    // apps.kubernetes.io/pod-index label; the chart sets it when statefulSet is on) does both.
+    // Anything else, such as a Deployment pod name or a constant, either changes on restart or is
+    // shared by every replica, so transactional mode refuses to start without one of the two.
+    static String transactionalId() {
+        String configured = EnvConfig.get("KAFKA_TRANSACTIONAL_ID", null);
+        if (configured != null) {
+            return configured;
+        }
+        String ordinal = EnvConfig.get("POD_INDEX", null);
+        if (ordinal == null || SERVICE_NAME == null) {
+            throw new IllegalStateException("KAFKA_PUBLISH_MODE=transactional needs KAFKA_TRANSACTIONAL_ID, or "
+                + "KUBERNETES_SERVICE_NAME and POD_INDEX (run the chart with statefulSet enabled)");
+        }
+        return SERVICE_NAME + "-" + ordinal;
+    }
 
+    // requiredTopics comes from the routing table: every route's topic and ACK topic.
+    public static void verifyTopicsExist(Collection<String> requiredTopics) {
+        try (AdminClient admin = AdminClient.create(createAdminProperties())) {
             Set<String> existingTopics = admin.listTopics().names().get(30, TimeUnit.SECONDS);
             List<String> missingTopics = requiredTopics.stream()
                 .filter(topic -> !existingTopics.contains(topic))
@@ -84,7 +172,7 @@ public class KafkaConfig {
                     .map(topic -> new NewTopic(topic, 1, (short) 1))
                     .collect(Collectors.toList());
                 admin.createTopics(newTopics).all().get(30, TimeUnit.SECONDS);
-                System.out.println("Created missing topics: " + missingTopics);
+                LOG.info("Created missing topics: {}", missingTopics);
             }
         } catch (Exception e) {
             throw new RuntimeException("Topic verification/creation failed: " + e.getMessage(), e);
@@ -0,0 +1,20 @@
+package net.healthcare.digitaltwin.capmllp;
+
+// Publishes a message together with its ACK record and reports whether the broker confirmed
+// both. Implemented by the async and transactional KAFKA_PUBLISH_MODEs.
+public interface KafkaPairPublisher extends AutoCloseable {
+
+    enum Result {
+        CONFIRMED,
+        // Known not to be in Kafka, so the pair can go to the outage store
+        NOT_PUBLISHED,
+        // May still become visible in Kafka; storing it as well could publish it twice
+        IN_DOUBT
+    }
+
+    // Message and ACK are String or byte[]; the ACK may be null.
+    Result publish(String topic, Object message, String ackTopic, Object ack, String key);
+
+    @Override
+    void close();
+}
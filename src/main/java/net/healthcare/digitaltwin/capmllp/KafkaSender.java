@@ -0,0 +1,84 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.camel.AsyncProducer;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.DefaultExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Non-blocking sends to the kafka component that are handed to the Kafka producer on the
+// calling thread, so records sent one after another keep that order per partition.
+// ProducerTemplate.asyncSend goes through a thread pool and does not guarantee this.
+public class KafkaSender implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(KafkaSender.class);
+
+    private final CamelContext camel;
+    private final ConcurrentHashMap<String, AsyncProducer> producers = new ConcurrentHashMap<>();
+
+    public KafkaSender(CamelContext camel) {
+        this.camel = camel;
+    }
+
+    // Completes with the exchange once the broker has answered; check Exchange#getException.
+    public CompletableFuture<Exchange> send(String topic, Object body, String key) {
+        CompletableFuture<Exchange> result = new CompletableFuture<>();
+        try {
+            AsyncProducer producer = producerFor(topic);
+            Exchange exchange = new DefaultExchange(camel);
+            exchange.getIn().setBody(body);
+            exchange.getIn().setHeader("kafka.KEY", key);
+            producer.process(exchange, doneSync -> result.complete(exchange));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Created outside computeIfAbsent so a slow producer start does not hold the map's bin lock
+    // (and pin a virtual thread); a losing duplicate is stopped again.
+    private AsyncProducer producerFor(String topic) {
+        AsyncProducer producer = producers.get(topic);
+        if (producer != null) {
+            return producer;
+        }
+        AsyncProducer created = createProducer(topic);
+        AsyncProducer existing = producers.putIfAbsent(topic, created);
+        if (existing != null) {
+            stop(created);
+            return existing;
+        }
+        return created;
+    }
+
+    private AsyncProducer createProducer(String topic) {
+        try {
+            Endpoint endpoint = camel.getEndpoint("kafka:" + topic);
+            AsyncProducer producer = endpoint.createAsyncProducer();
+            producer.start();
+            return producer;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create Kafka producer for topic " + topic, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (AsyncProducer producer : producers.values()) {
+            stop(producer);
+        }
+        producers.clear();
+    }
+
+    private static void stop(AsyncProducer producer) {
+        try {
+            producer.stop();
+        } catch (Exception e) {
+            LOG.debug("Failed to stop Kafka producer: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram in nanoseconds with all buckets allocated up front, so recording
+// is a bucket lookup and two striped increments. Each power of two is split into four
+// sub-buckets (about 19% resolution) up to 2^36 ns (~69 s); larger values land in the last bucket.
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+
+    private final LongAdder[] buckets = new LongAdder[(MAX_EXPONENT + 1) * SUB_BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void recordSince(long startNanos) {
+        if (Metrics.ENABLED) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[indexFor(value)].increment();
+        sumNanos.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100); 0 when nothing was recorded.
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    // Count of values below 2^(exponent + 1) ns, for every exponent; index i holds exponent i.
+    long[] cumulativeByPowerOfTwo() {
+        long[] counts = snapshot();
+        long[] cumulative = new long[MAX_EXPONENT + 1];
+        long running = 0;
+        for (int exponent = 0; exponent <= MAX_EXPONENT; exponent++) {
+            for (int sub = 0; sub < SUB_BUCKETS; sub++) {
+                running += counts[exponent * SUB_BUCKETS + sub];
+            }
+            cumulative[exponent] = running;
+        }
+        return cumulative;
+    }
+
+    static int maxExponent() {
+        return MAX_EXPONENT;
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        int exponent = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (exponent < SUB_BUCKET_BITS) {
+            return index;
+        }
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
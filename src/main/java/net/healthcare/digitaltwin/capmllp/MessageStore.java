@@ -1,54 +1,65 @@
 package net.healthcare.digitaltwin.capmllp;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MessageStore {
+public class MessageStore implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(MessageStore.class);
     private final String basePath;
-    private final Map<String, String> topicToFolder;
+    private final OutageLog outageLog;
 
     public MessageStore(String basePath) {
         this.basePath = basePath.endsWith("/") ? basePath : basePath + "/";
-        this.topicToFolder = new HashMap<>();
-        topicToFolder.put("AIP-34915", "ADT");
-        topicToFolder.put("AIP-34728", "ORU");
-        topicToFolder.put("ERROR-QUEUE", "ERROR");
+        try {
+            this.outageLog = new OutageLog(Paths.get(this.basePath, "wal"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open outage log under " + this.basePath, e);
+        }
     }
 
-    public void save(String topic, String message, String ack) {
-        String folderName = topicToFolder.getOrDefault(topic, "ERROR");
-        String msgFolder = basePath + folderName + "/";
-        String ackFolder = basePath + folderName + "-ACKS/";
+    // Message and ACK go into a single log record, so replay keeps them together and in arrival order.
+    // Returns false when the record was not stored; the caller must not acknowledge the message.
+    public boolean save(String topic, String key, String message, String ack) {
+        return save(topic, key, message.getBytes(StandardCharsets.UTF_8),
+            ack != null ? ack.getBytes(StandardCharsets.UTF_8) : null);
+    }
 
-        saveToFolder(msgFolder, message, "msg_" + System.currentTimeMillis() + ".hl7");
-        if (ack != null) {
-            saveToFolder(ackFolder, ack, "ack_" + System.currentTimeMillis() + ".hl7");
+    // The bytes are stored as given, e.g. the received frame in KAFKA_PASSTHROUGH mode.
+    public boolean save(String topic, String key, byte[] message, byte[] ack) {
+        long start = System.nanoTime();
+        try {
+            outageLog.append(topic, key, message, ack);
+            LOG.debug("Saved to local outage log: topic={}", topic);
+            return true;
+        } catch (OutageLog.QuotaExceededException e) {
+            LOG.warn("Outage log quota reached, refusing message for topic {}: {}", topic, e.getMessage());
+            return false;
+        } catch (IOException e) {
+            LOG.error("CRITICAL: Failed to store to outage log for topic {} - refusing message", topic, e);
+            return false;
+        } finally {
+            Metrics.STORE_WRITE.recordSince(start);
         }
     }
 
-    private void saveToFolder(String folder, String content, String fileName) {
-        Path dirPath = Paths.get(folder);
+    public OutageLog getOutageLog() {
+        return outageLog;
+    }
+
+    public String getBasePath() {
+        return basePath;
+    }
+
+    @Override
+    public void close() {
         try {
-            if (!Files.exists(dirPath)) {
-                Files.createDirectories(dirPath);
-            }
-            Path filePath = dirPath.resolve(fileName);
-            try (FileWriter writer = new FileWriter(filePath.toFile(), true)) {
-                writer.write(content);
-                writer.write("\n");
-                LOG.info("Saved to local storage: {}", filePath);
-            }
+            outageLog.close();
         } catch (IOException e) {
-            LOG.error("CRITICAL: Failed to store to {} - DATA LOSS", folder, e);
+            LOG.error("Failed to close outage log cleanly", e);
         }
     }
-}
\ No newline at end of file
+}
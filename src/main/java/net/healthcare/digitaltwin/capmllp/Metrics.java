@@ -0,0 +1,197 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+// Process-wide metrics exported by HealthServer at /metrics in Prometheus text format.
+// Recording only touches preallocated histograms and striped counters; the text is built at
+// scrape time. METRICS_ENABLED=false turns recording and the endpoint off.
+public final class Metrics {
+    public static final boolean ENABLED = EnvConfig.getBoolean("METRICS_ENABLED", true);
+    private static final String PREFIX = "capmllp_";
+    private static final int MAX_LABEL_VALUES = 64; // message types come off the wire
+
+    private static final Map<String, LatencyHistogram> STAGES = new LinkedHashMap<>();
+    public static final LatencyHistogram NORMALIZE = stage("normalize");
+    public static final LatencyHistogram UNMARSHAL = stage("unmarshal");
+    public static final LatencyHistogram ROUTE = stage("route");
+    public static final LatencyHistogram KAFKA_SEND = stage("kafka_send");
+    public static final LatencyHistogram STORE_WRITE = stage("store_write");
+    public static final LatencyHistogram ACK = stage("ack");
+    private static final Map<String, LatencyHistogram> FEEDS = new ConcurrentHashMap<>();
+
+    private static final LabeledCounter MESSAGES_BY_TOPIC = new LabeledCounter();
+    private static final LabeledCounter MESSAGES_BY_TYPE = new LabeledCounter();
+    private static final LabeledCounter KAFKA_SENDS = new LabeledCounter();
+    private static final LabeledCounter ROUTE_HITS = new LabeledCounter();
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    private static LatencyHistogram stage(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        STAGES.put(name, histogram);
+        return histogram;
+    }
+
+    // Receive-to-ACK histogram of one MLLP listener; its count is the feed's message count.
+    public static LatencyHistogram feed(String name) {
+        return FEEDS.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public static void countTopic(String topic) {
+        if (ENABLED) {
+            MESSAGES_BY_TOPIC.increment(topic);
+        }
+    }
+
+    public static void countMessageType(String type) {
+        if (ENABLED) {
+            MESSAGES_BY_TYPE.increment(type);
+        }
+    }
+
+    // result is ok, failed or short_circuited
+    public static void countKafkaSend(String result) {
+        if (ENABLED) {
+            KAFKA_SENDS.increment(result);
+        }
+    }
+
+    // rule is a routing table rule name, or unmatched
+    public static void countRoute(String rule) {
+        if (ENABLED) {
+            ROUTE_HITS.increment(rule);
+        }
+    }
+
+    // Values read at scrape time. labels is either empty or a Prometheus label set such as lane="0".
+    public static void registerGauge(String name, String help, String labels, DoubleSupplier value) {
+        register(name, "gauge", help, labels, value);
+    }
+
+    // A count that only goes up, read at scrape time; exported as name_total with TYPE counter.
+    public static void registerCounter(String name, String help, String labels, LongSupplier value) {
+        register(name + "_total", "counter", help, labels, value::getAsLong);
+    }
+
+    private static void register(String name, String type, String help, String labels, DoubleSupplier value) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        family.series.add(new Series(labels, value));
+    }
+
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        out.append("# HELP ").append(PREFIX).append("stage_duration_seconds Time spent in each ingestion stage\n");
+        out.append("# TYPE ").append(PREFIX).append("stage_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : STAGES.entrySet()) {
+            appendHistogram(out, "stage_duration_seconds", "stage", entry.getKey(), entry.getValue());
+        }
+        out.append("# HELP ").append(PREFIX).append("feed_duration_seconds Receive-to-ACK time per MLLP listener\n");
+        out.append("# TYPE ").append(PREFIX).append("feed_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : FEEDS.entrySet()) {
+            appendHistogram(out, "feed_duration_seconds", "feed", escape(entry.getKey()), entry.getValue());
+        }
+
+        appendCounter(out, "messages_total", "Messages routed per Kafka topic", "topic", MESSAGES_BY_TOPIC);
+        appendCounter(out, "messages_by_type_total", "Messages received per MSH-9 message type", "type",
+            MESSAGES_BY_TYPE);
+        appendCounter(out, "kafka_sends_total", "Live Kafka publish attempts by outcome", "result", KAFKA_SENDS);
+        appendCounter(out, "route_hits_total", "Messages matched per routing table rule", "rule", ROUTE_HITS);
+
+        for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+            String name = PREFIX + entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                out.append(name);
+                if (!series.labels.isEmpty()) {
+                    out.append('{').append(series.labels).append('}');
+                }
+                out.append(' ').append(format(series.value.getAsDouble())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String suffix, String label, String value,
+            LatencyHistogram histogram) {
+        String name = PREFIX + suffix;
+        String labels = label + "=\"" + value + "\"";
+        long[] cumulative = histogram.cumulativeByPowerOfTwo();
+        // 2^10 ns (~1 us) up to the histogram's top bucket
+        for (int exponent = 10; exponent < cumulative.length; exponent++) {
+            double le = Math.scalb(1.0, exponent + 1) / 1e9;
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                .append(format(le)).append("\"} ").append(cumulative[exponent]).append('\n');
+        }
+        long count = cumulative[cumulative.length - 1];
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ")
+            .append(format(histogram.getSumNanos() / 1e9)).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+
+    private static void appendCounter(StringBuilder out, String suffix, String help, String label,
+            LabeledCounter counter) {
+        String name = PREFIX + suffix;
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : counter.counts.entrySet()) {
+            out.append(name).append('{').append(label).append("=\"").append(escape(entry.getKey())).append("\"} ")
+                .append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class LabeledCounter {
+        private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+        void increment(String label) {
+            String key = label != null ? label : "UNKNOWN";
+            LongAdder counter = counts.get(key);
+            if (counter == null) {
+                if (counts.size() >= MAX_LABEL_VALUES) {
+                    key = "other";
+                }
+                counter = counts.computeIfAbsent(key, k -> new LongAdder());
+            }
+            counter.increment();
+        }
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final List<Series> series = new CopyOnWriteArrayList<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private record Series(String labels, DoubleSupplier value) {
+    }
+}
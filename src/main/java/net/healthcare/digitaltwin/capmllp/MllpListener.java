@@ -0,0 +1,127 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// One MLLP listening socket and the feed it serves. MLLP_LISTENERS declares them as
+// comma-separated name=host:port entries, e.g. "lis=0.0.0.0:2575,analysers=0.0.0.0:2576".
+// Each listener is its own Camel route and camel-mllp consumer, so it has its own connection
+// threads; MLLP_<NAME>_MAX_CONNECTIONS, _IDLE_TIMEOUT_MS and _RECEIVE_BUFFER_BYTES override the
+// MLLP_* defaults per feed. Without MLLP_LISTENERS there is the single listener on 2575.
+public final class MllpListener {
+    static final String DEFAULT_NAME = "default";
+    private static final int DEFAULT_PORT = 2575;
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final long idleTimeoutMs;
+    private final int receiveBufferBytes;
+    private final String routeId;
+    private final LatencyHistogram latency;
+
+    MllpListener(String name, String host, int port, int maxConnections, long idleTimeoutMs,
+                 int receiveBufferBytes, String routeId) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.receiveBufferBytes = receiveBufferBytes;
+        this.routeId = routeId;
+        this.latency = Metrics.feed(name);
+    }
+
+    static List<MllpListener> fromEnvironment() {
+        String declared = EnvConfig.get("MLLP_LISTENERS", null);
+        List<MllpListener> listeners = new ArrayList<>();
+        if (declared == null) {
+            listeners.add(create(DEFAULT_NAME, "0.0.0.0", DEFAULT_PORT, Receiver.ROUTE_ID));
+            return listeners;
+        }
+        Set<String> names = new HashSet<>();
+        Set<Integer> ports = new HashSet<>();
+        for (String entry : declared.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (equals <= 0 || colon < equals) {
+                throw new IllegalArgumentException("MLLP_LISTENERS entry '" + entry.trim()
+                    + "' is not name=host:port");
+            }
+            String name = entry.substring(0, equals).trim();
+            String host = entry.substring(equals + 1, colon).trim();
+            int port;
+            try {
+                port = Integer.parseInt(entry.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("MLLP_LISTENERS entry '" + entry.trim() + "' has no valid port");
+            }
+            if (!names.add(name) || !ports.add(port)) {
+                throw new IllegalArgumentException("MLLP_LISTENERS declares feed " + name + " or port " + port
+                    + " twice");
+            }
+            listeners.add(create(name, host.isEmpty() ? "0.0.0.0" : host, port, Receiver.ROUTE_ID + "-" + name));
+        }
+        if (listeners.isEmpty()) {
+            throw new IllegalArgumentException("MLLP_LISTENERS declares no listeners");
+        }
+        return listeners;
+    }
+
+    private static MllpListener create(String name, String host, int port, String routeId) {
+        String prefix = "MLLP_" + name.toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9]", "_") + "_";
+        return new MllpListener(name, host, port,
+            EnvConfig.getInt(prefix + "MAX_CONNECTIONS", EnvConfig.getInt("MLLP_MAX_CONNECTIONS", 5)),
+            EnvConfig.getLong(prefix + "IDLE_TIMEOUT_MS", EnvConfig.getLong("MLLP_IDLE_TIMEOUT_MS", 0)),
+            EnvConfig.getInt(prefix + "RECEIVE_BUFFER_BYTES", EnvConfig.getInt("MLLP_RECEIVE_BUFFER_BYTES", 0)),
+            routeId);
+    }
+
+    // camel-mllp endpoint URI; unset options keep the component defaults.
+    String endpointUri() {
+        StringBuilder uri = new StringBuilder("mllp://").append(host).append(':').append(port)
+            .append("?autoAck=false&maxConcurrentConsumers=").append(maxConnections);
+        if (idleTimeoutMs > 0) {
+            uri.append("&idleTimeout=").append(idleTimeoutMs);
+        }
+        if (receiveBufferBytes > 0) {
+            uri.append("&receiveBufferSize=").append(receiveBufferBytes);
+        }
+        return uri.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    // Receive-to-ACK time of this feed's messages.
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + host + ":" + port + " (max " + maxConnections + " connections"
+            + (idleTimeoutMs > 0 ? ", idle timeout " + idleTimeoutMs + "ms" : "")
+            + (receiveBufferBytes > 0 ? ", receive buffer " + receiveBufferBytes + " bytes" : "") + ")";
+    }
+}
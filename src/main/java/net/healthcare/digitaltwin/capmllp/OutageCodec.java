@@ -0,0 +1,148 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.xerial.snappy.Snappy;
+
+import com.github.luben.zstd.Zstd;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Compression for outage log records, with the same names and ids as Kafka's compression.type.
+// The codec libraries are the ones kafka-clients already ships for the producer. The id is
+// stored in each record's flags byte, so a log can mix codecs across restarts. snappy, lz4 and
+// zstd load native libraries that may be missing (snappy has none for musl), and then fail with a
+// LinkageError rather than an exception; usable() finds that out once, at startup.
+public enum OutageCodec {
+    NONE(0) {
+        @Override
+        byte[] compress(byte[] data) {
+            return data;
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int originalLength) {
+            return data;
+        }
+    },
+    GZIP(1) {
+        @Override
+        byte[] compress(byte[] data) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int originalLength) throws IOException {
+            try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return gzip.readNBytes(originalLength);
+            }
+        }
+    },
+    SNAPPY(2) {
+        @Override
+        byte[] compress(byte[] data) {
+            try {
+                return Snappy.compress(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int originalLength) throws IOException {
+            return Snappy.uncompress(data);
+        }
+    },
+    LZ4(3) {
+        @Override
+        byte[] compress(byte[] data) {
+            return LZ4Factory.fastestInstance().fastCompressor().compress(data);
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int originalLength) {
+            return LZ4Factory.fastestInstance().fastDecompressor().decompress(data, originalLength);
+        }
+    },
+    ZSTD(4) {
+        @Override
+        byte[] compress(byte[] data) {
+            return Zstd.compress(data, 3);
+        }
+
+        @Override
+        byte[] decompress(byte[] data, int originalLength) {
+            return Zstd.decompress(data, originalLength);
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutageCodec.class);
+
+    private final int id;
+
+    OutageCodec(int id) {
+        this.id = id;
+    }
+
+    int id() {
+        return id;
+    }
+
+    abstract byte[] compress(byte[] data);
+
+    abstract byte[] decompress(byte[] data, int originalLength) throws IOException;
+
+    static OutageCodec forId(int id) throws IOException {
+        for (OutageCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown outage record codec " + id);
+    }
+
+    // The codec when it round-trips a sample here, otherwise NONE with a warning.
+    static OutageCodec usable(OutageCodec codec) {
+        if (codec == NONE) {
+            return codec;
+        }
+        byte[] sample = "MSH|^~\\&|PROBE|PROBE|PROBE|PROBE|20240101000000||ACK|1|P|2.4\r".repeat(4)
+            .getBytes(StandardCharsets.US_ASCII);
+        try {
+            if (Arrays.equals(sample, codec.decompress(codec.compress(sample), sample.length))) {
+                return codec;
+            }
+            LOG.warn("Outage compression {} does not round-trip here - storing outage records uncompressed", codec);
+        } catch (IOException | RuntimeException | LinkageError e) {
+            LOG.warn("Outage compression {} is not usable here ({}) - storing outage records uncompressed", codec,
+                e.toString());
+        }
+        return NONE;
+    }
+
+    static OutageCodec forName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown outage compression '" + name
+                + "' - expected none, gzip, snappy, lz4 or zstd", e);
+        }
+    }
+}
@@ -0,0 +1,919 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Segmented, append-only outage log. Each record holds a message and its ACK:
+//
+//   [int payloadLength][int crc32c(payload)][payload]
+//   payload = [byte flags][long timestamp][short topicLen][topic][short keyLen][key][body]
+//   body    = [int messageLen][message][int ackLen, -1 if none][ack]
+//
+// The low bits of flags name the OutageCodec the body was compressed with; a compressed body is
+// stored as [int bodyLen][compressed body]. Records that would not shrink are stored as is.
+//
+// Appends are serialized under one lock and made durable by group commit: whichever writer
+// finds the log unsynced forces it for everyone waiting. Only the active segment can hold a
+// torn tail after a crash, so recovery scans just the last segment.
+//
+// OUTAGE_MAX_BYTES and OUTAGE_MAX_AGE_HOURS bound the log. With the REJECT policy, appends fail
+// once either is reached and the caller refuses the message; with DROP_OLDEST, the oldest sealed
+// segments are deleted, replayed or not, to make room and to expire old data.
+//
+// A record whose CRC matches but which cannot be decoded, e.g. one compressed with a codec this
+// process cannot load, is not a torn tail: recovery keeps it, and replay copies it to quarantine/
+// and moves on, so it neither stalls its segment nor is lost. A corrupt span with valid records
+// after it (a flipped bit, or a torn record a crashed replica left in a segment that is no longer
+// the last) is not a torn tail either: replay copies the span to quarantine/ and resumes at the
+// next record that passes its CRC check.
+//
+// Several replicas may share the directory. Every segment is owned through a FileLease: the
+// writer holds the lease on its active segment from before the file exists until it is sealed,
+// and replay, recovery and quota drops only touch a segment whose lease they hold, so replicas
+// and replay workers drain disjoint segments and never one that is still being written.
+public class OutageLog implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OutageLog.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    private static final String QUARANTINE_DIR = "quarantine";
+    private static final int RECORD_HEADER = 8;
+    private static final int CODEC_MASK = 0x07;
+    private static final long QUOTA_CHECK_INTERVAL_MS = 1000;
+
+    public enum QuotaPolicy {
+        REJECT, DROP_OLDEST
+    }
+
+    // Thrown by append when the REJECT policy refuses a record.
+    public static final class QuotaExceededException extends IOException {
+        QuotaExceededException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown by SegmentReader.next for an intact record that cannot be decoded. The reader has
+    // already moved past it, so reading can go on.
+    public static final class UndecodableRecordException extends IOException {
+        private final long offset;
+        private final long endOffset;
+        private final byte[] raw;
+
+        UndecodableRecordException(long offset, long endOffset, byte[] raw, Throwable cause) {
+            super("Undecodable outage record at offset " + offset + ": " + cause, cause);
+            this.offset = offset;
+            this.endOffset = endOffset;
+            this.raw = raw;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // Offset just past the record, as for Record.getEndOffset.
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean mmap;
+    private final boolean fsync;
+    private final OutageCodec codec;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final QuotaPolicy policy;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long nextSegment;
+    private Path activePath;
+    private FileLease activeLease;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeMap;
+    private long activePosition;
+    private volatile long writtenLsn;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    private final LongAdder rejectedRecords = new LongAdder();
+    private final LongAdder quarantinedRecords = new LongAdder();
+    private final LongAdder corruptBytes = new LongAdder();
+    private volatile long oldestTimestamp; // of the oldest unreplayed record, 0 when empty
+    private volatile boolean refusing; // the last append was refused by the REJECT policy
+    private long lastQuotaCheck;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long durableLsn;
+    private boolean syncing;
+
+    public OutageLog(Path directory) throws IOException {
+        this(directory,
+            EnvConfig.getLong("OUTAGE_SEGMENT_BYTES", 64L * 1024 * 1024),
+            EnvConfig.getBoolean("OUTAGE_MMAP", false),
+            !"none".equalsIgnoreCase(EnvConfig.get("OUTAGE_FSYNC", "group")),
+            OutageCodec.usable(OutageCodec.forName(EnvConfig.get("OUTAGE_COMPRESSION", "none"))),
+            EnvConfig.getLong("OUTAGE_MAX_BYTES", 0),
+            EnvConfig.getLong("OUTAGE_MAX_AGE_HOURS", 0) * 3_600_000L,
+            QuotaPolicy.valueOf(EnvConfig.get("OUTAGE_QUOTA_POLICY", "reject").toUpperCase(Locale.ROOT).replace('-', '_')));
+    }
+
+    public OutageLog(Path directory, long segmentBytes, boolean mmap, boolean fsync) throws IOException {
+        this(directory, segmentBytes, mmap, fsync, OutageCodec.NONE, 0, 0, QuotaPolicy.REJECT);
+    }
+
+    public OutageLog(Path directory, long segmentBytes, boolean mmap, boolean fsync, OutageCodec codec,
+            long maxBytes, long maxAgeMs, QuotaPolicy policy) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.mmap = mmap;
+        this.fsync = fsync;
+        this.codec = codec;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.policy = policy;
+        Files.createDirectories(directory);
+        recover();
+        LOG.info("Outage log at {} (segment={} bytes, mmap={}, fsync={}, compression={}, max={} bytes, max age={}h, "
+            + "policy={})", directory, segmentBytes, mmap, fsync, codec, maxBytes > 0 ? maxBytes : "unlimited",
+            maxAgeMs > 0 ? maxAgeMs / 3_600_000L : "unlimited", policy);
+    }
+
+    public static final class Record {
+        private final String topic;
+        private final String key;
+        private final byte[] message;
+        private final byte[] ack;
+        private final long timestamp;
+        private final long endOffset;
+
+        Record(String topic, String key, byte[] message, byte[] ack, long timestamp, long endOffset) {
+            this.topic = topic;
+            this.key = key;
+            this.message = message;
+            this.ack = ack;
+            this.timestamp = timestamp;
+            this.endOffset = endOffset;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getMessage() {
+            return message;
+        }
+
+        public byte[] getAck() {
+            return ack;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        // Offset just past this record; checkpointing it marks the record as consumed.
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    // Appends one message and its (optional) ACK and returns once the record is durable.
+    public void append(String topic, String key, byte[] message, byte[] ack) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer record = encode(topic, key, message, ack, now);
+        long lsn;
+        writeLock.lock();
+        try {
+            enforceQuotasLocked(record.remaining(), now);
+            if (activePosition + record.remaining() > segmentBytes && activePosition > 0) {
+                rollLocked();
+            }
+            if (activePath == null) {
+                openSegmentLocked(Math.max(segmentBytes, record.remaining()));
+            }
+            int length = record.remaining();
+            if (activeMap != null) {
+                activeMap.position((int) activePosition);
+                activeMap.put(record);
+            } else {
+                long pos = activePosition;
+                while (record.hasRemaining()) {
+                    pos += activeChannel.write(record, pos);
+                }
+            }
+            activePosition += length;
+            writtenLsn += length;
+            lsn = writtenLsn;
+            usedBytes.addAndGet(length);
+            if (oldestTimestamp == 0) {
+                oldestTimestamp = now;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        awaitDurable(lsn);
+    }
+
+    // Group commit: one caller forces the segment while the others wait for its result.
+    private void awaitDurable(long lsn) throws IOException {
+        if (!fsync) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target;
+                FileChannel channel;
+                MappedByteBuffer map;
+                writeLock.lock();
+                try {
+                    target = writtenLsn;
+                    channel = activeChannel;
+                    map = activeMap;
+                } finally {
+                    writeLock.unlock();
+                }
+                syncLock.unlock();
+                try {
+                    force(channel, map);
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    durableLsn = Math.max(durableLsn, target);
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private static void force(FileChannel channel, MappedByteBuffer map) throws IOException {
+        if (map != null) {
+            map.force();
+        } else if (channel != null && channel.isOpen()) {
+            try {
+                channel.force(false);
+            } catch (java.nio.channels.ClosedChannelException e) {
+                // Rolled concurrently; the roll already forced this segment
+            }
+        }
+    }
+
+    // Seals the active segment so everything written so far is visible to replay.
+    public void seal() throws IOException {
+        writeLock.lock();
+        try {
+            if (activePath != null && activePosition > 0) {
+                rollLocked();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Seals the active segment only when it holds records and no sealed segment is still waiting
+    // for replay, so replay reaches the newest records without cutting a small segment on every
+    // run. A sealed segment another worker or replica is draining, or another replica's active
+    // segment, does not count as waiting.
+    public boolean sealIfCaughtUp() throws IOException {
+        writeLock.lock();
+        try {
+            if (activePath == null || activePosition == 0) {
+                return false;
+            }
+            for (Path segment : sealedSegmentsLocked()) {
+                try (FileLease lease = claim(segment)) {
+                    if (lease != null) {
+                        return false;
+                    }
+                }
+            }
+            rollLocked();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void rollLocked() throws IOException {
+        if (activePath == null) {
+            return;
+        }
+        if (fsync) {
+            force(activeChannel, activeMap);
+        }
+        if (activeMap != null) {
+            // Drop the unused tail of the mapping so the file size is the data size
+            activeMap = null;
+            activeChannel.truncate(activePosition);
+        }
+        activeChannel.close();
+        activeLease.close();
+        LOG.debug("Sealed outage segment {} at {} bytes", activePath.getFileName(), activePosition);
+        activeLease = null;
+        activeChannel = null;
+        activeMap = null;
+        activePath = null;
+        activePosition = 0;
+    }
+
+    private void openSegmentLocked(long size) throws IOException {
+        while (true) {
+            Path path = directory.resolve(segmentName(nextSegment++));
+            // Leased before it exists, so no replayer can claim it while it is empty
+            FileLease lease = FileLease.tryAcquire(path);
+            if (lease == null) {
+                continue; // another replica is creating this one
+            }
+            try {
+                activeChannel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                lease.close();
+                List<Path> segments = listSegments();
+                nextSegment = Math.max(nextSegment, segmentNumber(segments.get(segments.size() - 1)) + 1);
+                continue;
+            } catch (IOException e) {
+                lease.close();
+                throw e;
+            }
+            activePath = path;
+            activeLease = lease;
+            break;
+        }
+        if (mmap) {
+            activeMap = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        activePosition = 0;
+    }
+
+    // Runs outside the write lock, so concurrent writers compress in parallel.
+    private ByteBuffer encode(String topic, String key, byte[] message, byte[] ack, long timestamp) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = (key != null ? key : "").getBytes(StandardCharsets.UTF_8);
+        int headerLength = 1 + 8 + 2 + topicBytes.length + 2 + keyBytes.length;
+        int bodyLength = 4 + message.length + 4 + (ack != null ? ack.length : 0);
+        byte[] compressed = null;
+        if (codec != OutageCodec.NONE) {
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            putBody(body, message, ack);
+            try {
+                byte[] packed = codec.compress(body.array());
+                if (packed.length + 4 < bodyLength) {
+                    compressed = packed;
+                }
+            } catch (RuntimeException | LinkageError e) {
+                // Stored as is rather than lost; the startup probe normally catches a missing codec
+                LOG.warn("Outage compression {} failed, storing the record uncompressed: {}", codec, e.toString());
+            }
+        }
+        int payloadLength = headerLength + (compressed != null ? 4 + compressed.length : bodyLength);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + payloadLength);
+        buffer.putInt(payloadLength);
+        buffer.putInt(0); // crc placeholder
+        buffer.put((byte) (compressed != null ? codec.id() : 0));
+        buffer.putLong(timestamp);
+        buffer.putShort((short) topicBytes.length).put(topicBytes);
+        buffer.putShort((short) keyBytes.length).put(keyBytes);
+        if (compressed != null) {
+            buffer.putInt(bodyLength).put(compressed);
+        } else {
+            putBody(buffer, message, ack);
+        }
+        recordsWritten.increment();
+        rawBytes.add(RECORD_HEADER + headerLength + bodyLength);
+        storedBytes.add(RECORD_HEADER + payloadLength);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), RECORD_HEADER, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putBody(ByteBuffer buffer, byte[] message, byte[] ack) {
+        buffer.putInt(message.length).put(message);
+        if (ack != null) {
+            buffer.putInt(ack.length).put(ack);
+        } else {
+            buffer.putInt(-1);
+        }
+    }
+
+    // Applies the byte and age quotas before a record of the given size is written.
+    private void enforceQuotasLocked(int recordBytes, long now) throws IOException {
+        boolean overBytes = maxBytes > 0 && usedBytes.get() + recordBytes > maxBytes;
+        boolean checkAge = maxAgeMs > 0 && now - lastQuotaCheck >= QUOTA_CHECK_INTERVAL_MS;
+        if (!overBytes && !checkAge) {
+            refusing = false;
+            return;
+        }
+        lastQuotaCheck = now;
+        boolean overAge = maxAgeMs > 0 && oldestTimestamp != 0 && now - oldestTimestamp > maxAgeMs;
+        if (!overBytes && !overAge) {
+            refusing = false;
+            return;
+        }
+        if (policy == QuotaPolicy.REJECT) {
+            refusing = true;
+            rejectedRecords.increment();
+            throw new QuotaExceededException(overBytes
+                ? "Outage log full: " + usedBytes.get() + " of " + maxBytes + " bytes used"
+                : "Outage log holds records older than " + maxAgeMs / 3_600_000L + "h");
+        }
+        for (Path segment : sealedSegmentsLocked()) {
+            boolean expired = maxAgeMs > 0 && now - Files.getLastModifiedTime(segment).toMillis() > maxAgeMs;
+            boolean needRoom = maxBytes > 0 && usedBytes.get() + recordBytes > maxBytes;
+            if (!expired && !needRoom) {
+                break;
+            }
+            FileLease lease = claim(segment);
+            if (lease == null) {
+                continue; // being replayed, or another replica's active segment
+            }
+            try {
+                drop(segment, expired ? "older than " + maxAgeMs / 3_600_000L + "h" : "outage log full");
+            } finally {
+                lease.closeAndDelete();
+            }
+        }
+        refreshOldest();
+    }
+
+    // Deletes expired segments under DROP_OLDEST; otherwise expiry happens on the next append.
+    public void enforceQuotas() throws IOException {
+        if (policy != QuotaPolicy.DROP_OLDEST || (maxBytes <= 0 && maxAgeMs <= 0)) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            lastQuotaCheck = 0;
+            enforceQuotasLocked(0, System.currentTimeMillis());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void drop(Path segment, String reason) throws IOException {
+        long size = Files.size(segment);
+        long unreplayed = Math.max(0, size - readCheckpoint(segment));
+        Files.deleteIfExists(segment);
+        Files.deleteIfExists(checkpointPath(segment));
+        usedBytes.addAndGet(-size);
+        droppedBytes.add(unreplayed);
+        LOG.error("Dropped outage segment {} ({}): {} unreplayed bytes lost", segment.getFileName(), reason,
+            unreplayed);
+    }
+
+    // Timestamp of the first unreplayed record, read from the oldest segment that has one.
+    private void refreshOldest() {
+        try {
+            for (Path segment : listSegments()) {
+                try (SegmentReader reader = openReader(segment, readCheckpoint(segment))) {
+                    while (true) {
+                        try {
+                            Record first = reader.next();
+                            if (first != null) {
+                                oldestTimestamp = first.getTimestamp();
+                                return;
+                            }
+                            break;
+                        } catch (UndecodableRecordException e) {
+                            // Waiting for replay to quarantine it; its age is unknown
+                        }
+                    }
+                }
+            }
+            oldestTimestamp = 0;
+        } catch (IOException e) {
+            LOG.debug("Could not read oldest outage record: {}", e.getMessage());
+        }
+    }
+
+    // Truncates a torn tail in the last segment; older segments were sealed cleanly.
+    private void recover() throws IOException {
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            nextSegment = 1;
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        nextSegment = segmentNumber(last) + 1;
+        try (FileLease lease = claim(last)) {
+            if (lease != null) {
+                truncateTornTail(last);
+            }
+        }
+        for (Path segment : segments) {
+            usedBytes.addAndGet(Files.size(segment));
+        }
+        refreshOldest();
+        LOG.info("Outage log recovered {} segment(s); backlog {} bytes", segments.size(), getBacklogBytes());
+    }
+
+    // A live writer in another replica holds the lease on its segment, which is left alone. Only
+    // a short or CRC-failing tail with no valid record after it is cut; undecodable but intact
+    // records, and corrupt spans followed by valid records, are kept for replay.
+    private void truncateTornTail(Path last) throws IOException {
+        long validEnd = 0;
+        long records = 0;
+        long undecodable = 0;
+        long corrupt = 0;
+        try (SegmentReader reader = openReader(last, 0)) {
+            while (true) {
+                try {
+                    if (reader.next() != null) {
+                        records++;
+                        validEnd = reader.position();
+                        continue;
+                    }
+                } catch (UndecodableRecordException e) {
+                    undecodable++;
+                    validEnd = reader.position();
+                    continue;
+                }
+                if (reader.atEnd()) {
+                    break;
+                }
+                reader.skipCorrupt();
+                if (reader.atEnd()) {
+                    break; // nothing valid after it: a torn tail
+                }
+                corrupt++;
+            }
+        }
+        if (undecodable > 0) {
+            LOG.warn("Outage segment {} holds {} intact record(s) that cannot be decoded; replay will quarantine "
+                + "them", last.getFileName(), undecodable);
+        }
+        if (corrupt > 0) {
+            LOG.error("Outage segment {} holds {} corrupt span(s) followed by valid records; replay will quarantine "
+                + "them", last.getFileName(), corrupt);
+        }
+        long size = Files.size(last);
+        if (validEnd < size) {
+            try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+                channel.truncate(validEnd);
+                channel.force(true);
+            }
+            LOG.info("Recovered outage segment {}: kept {} records, trimmed {} trailing bytes",
+                last.getFileName(), records, size - validEnd);
+        }
+    }
+
+    public List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .filter(p -> {
+                    String name = p.getFileName().toString();
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                })
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    // Segments that are no longer written to by this process, oldest first. Another replica's
+    // active segment is listed too, but cannot be claimed until it is sealed.
+    public List<Path> sealedSegments() throws IOException {
+        writeLock.lock();
+        try {
+            return sealedSegmentsLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private List<Path> sealedSegmentsLocked() throws IOException {
+        List<Path> sealed = new ArrayList<>(listSegments());
+        if (activePath != null) {
+            sealed.remove(activePath);
+        }
+        return sealed;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // Bytes on disk across all segments, replayed or not.
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public QuotaPolicy getQuotaPolicy() {
+        return policy;
+    }
+
+    // Whether REJECT is currently refusing appends, or would refuse the next one.
+    public boolean isQuotaReached() {
+        if (policy != QuotaPolicy.REJECT) {
+            return false;
+        }
+        long oldest = oldestTimestamp;
+        return refusing || (maxBytes > 0 && usedBytes.get() >= maxBytes)
+            || (maxAgeMs > 0 && oldest != 0 && System.currentTimeMillis() - oldest > maxAgeMs);
+    }
+
+    // Uncompressed over stored size of the records written since startup; 1 when nothing was written.
+    public double getCompressionRatio() {
+        long stored = storedBytes.sum();
+        return stored > 0 ? (double) rawBytes.sum() / stored : 1.0;
+    }
+
+    public long getAverageRecordBytes() {
+        long records = recordsWritten.sum();
+        return records > 0 ? storedBytes.sum() / records : 0;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    public long getRejectedRecords() {
+        return rejectedRecords.sum();
+    }
+
+    public long getQuarantinedRecords() {
+        return quarantinedRecords.sum();
+    }
+
+    // Bytes of corrupt spans moved past in the middle of segments since startup.
+    public long getCorruptBytes() {
+        return corruptBytes.sum();
+    }
+
+    public long getBacklogBytes() {
+        long total = 0;
+        try {
+            for (Path segment : listSegments()) {
+                total += Math.max(0, Files.size(segment) - readCheckpoint(segment));
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not size outage backlog: {}", e.getMessage());
+        }
+        return total;
+    }
+
+    public long readCheckpoint(Path segment) throws IOException {
+        Path checkpoint = checkpointPath(segment);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+    }
+
+    public void writeCheckpoint(Path segment, long offset) throws IOException {
+        if (!Files.exists(segment)) {
+            return; // dropped by the quota while it was being replayed
+        }
+        Path checkpoint = checkpointPath(segment);
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, Long.toString(offset).getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        refusing = false;
+        refreshOldest();
+    }
+
+    // Deletes a segment whose records have all been replayed.
+    public void markConsumed(Path segment) throws IOException {
+        long size = Files.exists(segment) ? Files.size(segment) : 0;
+        if (Files.deleteIfExists(segment)) {
+            usedBytes.addAndGet(-size);
+        }
+        Files.deleteIfExists(checkpointPath(segment));
+        refusing = false; // re-checked against the quota on the next append
+        refreshOldest();
+        LOG.info("Outage segment {} fully replayed and removed", segment.getFileName());
+    }
+
+    // Copies an undecodable record, header included, to quarantine/<segment>@<offset> so it can be
+    // decoded where its codec is available. Quarantining the same record again is a no-op.
+    public void quarantine(Path segment, UndecodableRecordException e) throws IOException {
+        Path folder = directory.resolve(QUARANTINE_DIR);
+        Files.createDirectories(folder);
+        Path file = folder.resolve(segment.getFileName() + "@" + e.getOffset());
+        try {
+            Files.write(file, e.raw, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException exists) {
+            return;
+        }
+        quarantinedRecords.increment();
+        LOG.error("Quarantined outage record {} at offset {} as {}: {}", segment.getFileName(), e.getOffset(),
+            file, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+    }
+
+    // Moves the reader, stopped short of the end of its segment, past the corrupt span to the next
+    // valid record and copies the span to quarantine/<segment>@<offset>. The records in the span
+    // are lost, and how many there were cannot be known.
+    public void skipCorrupt(Path segment, SegmentReader reader) throws IOException {
+        long from = reader.position();
+        long skipped = reader.skipCorrupt();
+        Path folder = directory.resolve(QUARANTINE_DIR);
+        Files.createDirectories(folder);
+        Path file = folder.resolve(segment.getFileName() + "@" + from);
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < skipped) {
+                copied += in.transferTo(from + copied, skipped - copied, out);
+            }
+        } catch (FileAlreadyExistsException exists) {
+            return;
+        }
+        corruptBytes.add(skipped);
+        LOG.error("Outage segment {} is corrupt from offset {} to {}; the records in those {} bytes are lost and the "
+            + "span is kept as {}", segment.getFileName(), from, from + skipped, skipped, file);
+    }
+
+    // The lease on a segment, or null when another worker or replica owns it or it is gone.
+    public FileLease claim(Path segment) throws IOException {
+        FileLease lease = FileLease.tryAcquire(segment);
+        if (lease != null && !Files.exists(segment)) {
+            lease.closeAndDelete(); // consumed or dropped by its previous owner
+            return null;
+        }
+        return lease;
+    }
+
+    public SegmentReader openReader(Path segment, long fromOffset) throws IOException {
+        return new SegmentReader(segment, fromOffset);
+    }
+
+    private static Path checkpointPath(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + CHECKPOINT_SUFFIX);
+    }
+
+    private static String segmentName(long number) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Sequential reader over one segment. Stops at the end of the data, at zero padding left by
+    // memory-mapped segments, or at the first record that fails its length or CRC check, where
+    // skipCorrupt() finds the next valid one; throws UndecodableRecordException, and can then go
+    // on, for an intact record it cannot decode.
+    public static final class SegmentReader implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer data;
+        private final CRC32C crc = new CRC32C();
+
+        SegmentReader(Path segment, long fromOffset) throws IOException {
+            this.channel = FileChannel.open(segment, StandardOpenOption.READ);
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.data.position((int) Math.min(fromOffset, data.limit()));
+        }
+
+        public Record next() throws UndecodableRecordException {
+            int start = data.position();
+            if (!isRecordAt(start)) {
+                return null;
+            }
+            int length = data.getInt(start);
+            ByteBuffer payload = data.duplicate();
+            payload.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length);
+            int end = start + RECORD_HEADER + length;
+            try {
+                Record record = decode(payload, end);
+                data.position(end);
+                return record;
+            } catch (IOException | RuntimeException | LinkageError e) {
+                byte[] raw = new byte[RECORD_HEADER + length];
+                data.get(start, raw);
+                data.position(end);
+                throw new UndecodableRecordException(start, end, raw, e);
+            }
+        }
+
+        // Whether a record that passes its length and CRC check starts at the offset.
+        private boolean isRecordAt(int start) {
+            if (data.limit() - start < RECORD_HEADER) {
+                return false;
+            }
+            int length = data.getInt(start);
+            if (length <= 0 || length > data.limit() - start - RECORD_HEADER) {
+                return false;
+            }
+            ByteBuffer payload = data.duplicate();
+            payload.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length);
+            crc.reset();
+            crc.update(payload);
+            return (int) crc.getValue() == data.getInt(start + 4);
+        }
+
+        // Whether next() stopped at the end of the data, leaving nothing but the zero padding of a
+        // memory-mapped segment its writer did not seal.
+        public boolean atEnd() {
+            for (int p = data.position(); p < data.limit(); p++) {
+                if (data.get(p) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Moves to the next offset where a valid record starts, or to the end of the data, and
+        // returns the bytes skipped.
+        long skipCorrupt() {
+            int start = data.position();
+            int p = start + 1;
+            while (p < data.limit() && !isRecordAt(p)) {
+                p++;
+            }
+            p = Math.min(p, data.limit());
+            data.position(p);
+            return p - start;
+        }
+
+        private static Record decode(ByteBuffer payload, long endOffset) throws IOException {
+            int flags = payload.get();
+            long timestamp = payload.getLong();
+            String topic = readString(payload, payload.getShort());
+            String key = readString(payload, payload.getShort());
+            ByteBuffer body = payload;
+            if ((flags & CODEC_MASK) != 0) {
+                int bodyLength = payload.getInt();
+                byte[] packed = new byte[payload.remaining()];
+                payload.get(packed);
+                body = ByteBuffer.wrap(OutageCodec.forId(flags & CODEC_MASK).decompress(packed, bodyLength));
+            }
+            byte[] message = new byte[body.getInt()];
+            body.get(message);
+            int ackLength = body.getInt();
+            byte[] ack = null;
+            if (ackLength >= 0) {
+                ack = new byte[ackLength];
+                body.get(ack);
+            }
+            return new Record(topic, key.isEmpty() ? null : key, message, ack, timestamp, endOffset);
+        }
+
+        public long position() {
+            return data.position();
+        }
+
+        private static String readString(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            rollLocked();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Group;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Structure;
+import ca.uhn.hl7v2.util.Terser;
+
+// Resolves PID-3-1 by walking the parsed message directly. The group path to PID is learned
+// once per message structure (ORU_R01, ADT_A01, ...) and reused, so lookups neither build a
+// Terser nor probe candidate paths by catching HL7Exceptions.
+public class PatientIdResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(PatientIdResolver.class);
+    private static final String PID = "PID";
+
+    private final ConcurrentHashMap<String, String[]> pathsByStructure = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+
+    // Returns PID-3-1, or null when the message carries no PID or the identifier is empty.
+    public String resolve(Message message) {
+        String structure = message.getName();
+        String[] path = pathsByStructure.get(structure);
+        if (path == null) {
+            misses.increment();
+            List<String> learned = new ArrayList<>();
+            if (!findPid(message, learned)) {
+                notFound.increment();
+                return null;
+            }
+            path = learned.toArray(new String[0]);
+            pathsByStructure.putIfAbsent(structure, path);
+            LOG.debug("Learned PID path for {}: {}", structure, String.join("/", path));
+        } else {
+            hits.increment();
+        }
+
+        try {
+            Structure current = message;
+            for (String name : path) {
+                Structure[] reps = ((Group) current).getAll(name);
+                if (reps.length == 0) {
+                    notFound.increment();
+                    return null;
+                }
+                current = reps[0];
+            }
+            String patientId = Terser.get((Segment) current, 3, 0, 1, 1);
+            if (patientId == null || patientId.isEmpty()) {
+                notFound.increment();
+                return null;
+            }
+            return patientId;
+        } catch (HL7Exception e) {
+            // Only reachable if the learned path does not fit this instance of the structure
+            LOG.debug("Cached PID path failed for {}: {}", structure, e.getMessage());
+            notFound.increment();
+            return null;
+        }
+    }
+
+    // Depth-first search over the populated structures only, so nothing is created in the message.
+    private static boolean findPid(Group group, List<String> path) {
+        for (String name : group.getNames()) {
+            Structure[] reps;
+            try {
+                reps = group.getAll(name);
+            } catch (HL7Exception e) {
+                continue;
+            }
+            if (reps.length == 0) {
+                continue;
+            }
+            if (PID.equals(name) && reps[0] instanceof Segment) {
+                path.add(name);
+                return true;
+            }
+            if (reps[0] instanceof Group) {
+                path.add(name);
+                if (findPid((Group) reps[0], path)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getNotFound() {
+        return notFound.sum();
+    }
+}
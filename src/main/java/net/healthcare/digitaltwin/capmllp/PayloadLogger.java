@@ -0,0 +1,137 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Logs received messages and their ACKs on a dedicated logger so logback.xml can send them to
+// their own non-blocking appender. PAYLOAD_LOG picks which messages are logged:
+//   all    - every message (the original behaviour)
+//   sample - one in PAYLOAD_LOG_SAMPLE messages, chosen at random
+//   first  - the first PAYLOAD_LOG_FIRST_N messages of every PAYLOAD_LOG_INTERVAL_MS window
+//   off    - none
+// The text is built from the frame bytes the receiver already holds, and only for messages that
+// are logged. PAYLOAD_LOG_MASK_PID=true replaces every PID field after PID-1 with ***.
+final class PayloadLogger {
+    private static final Logger LOG = LoggerFactory.getLogger("net.healthcare.digitaltwin.capmllp.payload");
+    private static final String MASK = "***";
+
+    enum Mode {
+        ALL, SAMPLE, FIRST, OFF
+    }
+
+    private final Mode mode;
+    private final int sampleEvery;
+    private final int firstN;
+    private final long intervalMs;
+    private final boolean maskPid;
+    private final AtomicLong windowStart = new AtomicLong();
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    PayloadLogger(Mode mode, int sampleEvery, int firstN, long intervalMs, boolean maskPid) {
+        this.mode = mode;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.firstN = Math.max(0, firstN);
+        this.intervalMs = Math.max(1, intervalMs);
+        this.maskPid = maskPid;
+    }
+
+    static PayloadLogger fromEnvironment() {
+        String value = EnvConfig.get("PAYLOAD_LOG", "all");
+        Mode mode;
+        try {
+            mode = Mode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(PayloadLogger.class).warn("Unknown PAYLOAD_LOG '{}' - using all", value);
+            mode = Mode.ALL;
+        }
+        PayloadLogger logger = new PayloadLogger(mode,
+            EnvConfig.getInt("PAYLOAD_LOG_SAMPLE", 100),
+            EnvConfig.getInt("PAYLOAD_LOG_FIRST_N", 10),
+            EnvConfig.getLong("PAYLOAD_LOG_INTERVAL_MS", 60_000),
+            EnvConfig.getBoolean("PAYLOAD_LOG_MASK_PID", false));
+        LoggerFactory.getLogger(PayloadLogger.class).info("Payload logging: mode={}, maskPid={}", mode,
+            logger.maskPid);
+        return logger;
+    }
+
+    // Returns whether the message was logged, so the caller can log its ACK to match.
+    boolean received(byte[] frame, int length) {
+        if (!LOG.isInfoEnabled() || !shouldLog()) {
+            return false;
+        }
+        LOG.info("=**=> Received HL7 message: {}", maskPid ? mask(frame, length) : text(frame, length));
+        return true;
+    }
+
+    void ackSent(String ack) {
+        LOG.info("=**=> ACK sent: {}", ack);
+    }
+
+    private boolean shouldLog() {
+        switch (mode) {
+            case ALL:
+                return true;
+            case SAMPLE:
+                return ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+            case FIRST:
+                long now = System.currentTimeMillis();
+                long start = windowStart.get();
+                if (now - start >= intervalMs && windowStart.compareAndSet(start, now)) {
+                    int previous = windowCount.getAndSet(0);
+                    if (previous > firstN && start != 0) {
+                        LOG.info("Skipped logging {} message(s) in the last {}ms", previous - firstN, intervalMs);
+                    }
+                }
+                return windowCount.incrementAndGet() <= firstN;
+            default:
+                return false;
+        }
+    }
+
+    private static String text(byte[] frame, int length) {
+        return new String(frame, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    static String mask(byte[] frame, int length) {
+        byte separator = length > 3 && frame[0] == 'M' && frame[1] == 'S' && frame[2] == 'H' ? frame[3] : (byte) '|';
+        StringBuilder out = new StringBuilder(length);
+        int segmentStart = 0;
+        while (segmentStart < length) {
+            int segmentEnd = segmentStart;
+            while (segmentEnd < length && frame[segmentEnd] != '\r' && frame[segmentEnd] != '\n') {
+                segmentEnd++;
+            }
+            boolean pid = segmentEnd - segmentStart > 3 && frame[segmentStart] == 'P' && frame[segmentStart + 1] == 'I'
+                && frame[segmentStart + 2] == 'D' && frame[segmentStart + 3] == separator;
+            int field = 0;
+            int fieldStart = segmentStart;
+            for (int i = segmentStart; i <= segmentEnd; i++) {
+                if (i < segmentEnd && frame[i] != separator) {
+                    continue;
+                }
+                // Segment name and PID-1 (set ID) stay readable; empty fields stay empty
+                if (pid && field > 1 && i > fieldStart) {
+                    out.append(MASK);
+                } else {
+                    out.append(new String(frame, fieldStart, i - fieldStart, StandardCharsets.ISO_8859_1));
+                }
+                if (i < segmentEnd) {
+                    out.append((char) separator);
+                }
+                field++;
+                fieldStart = i + 1;
+            }
+            if (segmentEnd < length) {
+                out.append((char) (frame[segmentEnd] & 0xff));
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        return out.toString();
+    }
+}
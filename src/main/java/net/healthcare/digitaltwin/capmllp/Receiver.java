@@ -1,12 +1,27 @@
 package net.healthcare.digitaltwin.capmllp;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Consumer;
+import org.apache.camel.Route;
+import org.apache.camel.Service;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.hl7.HL7DataFormat;
 import org.apache.camel.component.mllp.MllpConstants;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.support.LifecycleStrategySupport;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,11 +29,42 @@ import ca.uhn.hl7v2.model.Message;
 
 public class Receiver extends RouteBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(Receiver.class);
-    private static final int MLLP_PORT = 2575;
+    static final String ROUTE_ID = "mllp-receiver";
+    private static final String RAW_FRAME = "capmllp.rawFrame";
+    private static final String PAYLOAD_LOGGED = "capmllp.payloadLogged";
+    private static final String RECEIVED_AT = "capmllp.receivedAt";
+    private static final String ADMITTED_AT = "capmllp.admittedAt";
+    private static final String OVERLOADED = "Receiver overloaded - retry later";
+    private static final boolean FAST_ROUTING = EnvConfig.getBoolean("MLLP_FAST_ROUTING", false);
+    private static final int PROCESSING_LANES = EnvConfig.getInt("PROCESSING_LANES", 0);
+    private static final int PROCESSING_LANE_QUEUE = EnvConfig.getInt("PROCESSING_LANE_QUEUE", 128);
+    private final List<MllpListener> listeners;
     private final HL7Handler handler;
+    private final FrameNormalizer normalizer;
+    private final StripedExecutor lanes;
+    private final PayloadLogger payloadLogger;
+    private final AdmissionController admission;
+    // camel-mllp connection pools by route ID; their maximum size is the listener's connection limit
+    private final Map<String, ThreadPoolExecutor> connectionPools = new ConcurrentHashMap<>();
+    // The whole route runs on the connection's thread, so the unmarshal start time can be kept per thread
+    private final ThreadLocal<long[]> unmarshalStart = ThreadLocal.withInitial(() -> new long[1]);
 
-    public Receiver(CamelContext camel, String basePath) {
-        this.handler = new HL7Handler(camel, basePath);
+    public Receiver(CamelContext camel, String basePath, KafkaCircuitBreaker breaker) {
+        this(camel, basePath, breaker, RoutingTable.fromEnvironment());
+    }
+
+    public Receiver(CamelContext camel, String basePath, KafkaCircuitBreaker breaker, RoutingTable routing) {
+        this.listeners = MllpListener.fromEnvironment();
+        this.handler = new HL7Handler(camel, basePath, breaker, routing);
+        this.normalizer = FrameNormalizer.fromEnvironment();
+        this.payloadLogger = PayloadLogger.fromEnvironment();
+        this.admission = new AdmissionController(handler.getMessageStore().getOutageLog(), breaker);
+        admission.addListener(level -> limitConnections());
+        // Optional per-patient lanes: messages for one patient are handled in arrival order
+        // across all connections, different patients in parallel.
+        this.lanes = PROCESSING_LANES > 0
+            ? new StripedExecutor("mllp-processing", PROCESSING_LANES, PROCESSING_LANE_QUEUE)
+            : null;
     }
 
     @Override
@@ -26,45 +72,181 @@ public class Receiver extends RouteBuilder {
         HL7DataFormat hl7 = new HL7DataFormat();
         hl7.setValidate(false);
 
-        from("mllp://0.0.0.0:" + MLLP_PORT + "?autoAck=false")
-            .routeId("mllp-receiver")
-            .process(exchange -> {
-                String raw = exchange.getIn().getBody(String.class);
-                LOG.debug("Raw input before fix: {}", raw);
-                String[] segments = raw.split("\r");
-                for (int i = 0; i < segments.length; i++) {
-                    if (segments[i].startsWith("MSH")) {
-                        String[] fields = segments[i].split("\\|");
-                        if (fields.length > 11 && fields[11].contains("|")) {
-                            fields[11] = fields[11].split("\\|")[0];
-                        }
-                        segments[i] = String.join("|", fields);
-                        break;
+        List<String> routeIds = getRouteIds();
+        // Each consumer is handed over here after it is built and before it starts accepting
+        getContext().addLifecycleStrategy(new LifecycleStrategySupport() {
+            @Override
+            public void onServiceAdd(CamelContext context, Service service, Route owner) {
+                if (service instanceof Consumer && owner != null && routeIds.contains(owner.getRouteId())) {
+                    ThreadPoolExecutor pool = ThreadSupport.mllpConnectionPool((Consumer) service);
+                    if (pool != null) {
+                        ThreadSupport.useForMllpConnections(pool, "mllp-connection-" + owner.getRouteId());
+                        connectionPools.put(owner.getRouteId(), pool);
+                        limitConnections();
                     }
                 }
-                String fixed = String.join("\r", segments);
-                LOG.debug("Fixed input: {}", fixed);
-                exchange.getIn().setBody(fixed);
+            }
+        });
+
+        // Every listener feeds the same handler; each has its own route, consumer and connection threads
+        for (MllpListener listener : listeners) {
+            LOG.info("MLLP listener {}", listener);
+            configure(listener, hl7);
+        }
+    }
+
+    private void configure(MllpListener listener, HL7DataFormat hl7) {
+        RouteDefinition route = from(listener.endpointUri())
+            .routeId(listener.getRouteId())
+            .process(exchange -> {
+                exchange.setProperty(RECEIVED_AT, System.nanoTime());
+                byte[] frame = exchange.getIn().getBody(byte[].class);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Raw input before fix: {}", new String(frame, StandardCharsets.ISO_8859_1));
+                }
+                long start = System.nanoTime();
+                int length = normalizer.normalize(frame, frame.length);
+                if (length != frame.length) {
+                    frame = Arrays.copyOf(frame, length);
+                }
+                Metrics.NORMALIZE.recordSince(start);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Fixed input: {}", new String(frame, StandardCharsets.ISO_8859_1));
+                }
+                exchange.getIn().setBody(frame);
+                // Logged from the frame bytes here so the parsed message is never re-encoded for it
+                exchange.setProperty(PAYLOAD_LOGGED, payloadLogger.received(frame, frame.length));
+                exchange.setProperty(RAW_FRAME, frame);
             })
-            .unmarshal(hl7)
             .process(exchange -> {
-                Message parsedMessage = exchange.getIn().getBody(Message.class);
-                LOG.info("=**=> Received HL7 message: {}", parsedMessage.encode());
-                Map<String, Object> metadata = new HashMap<>();
-                metadata.put("RAW_MESSAGE", parsedMessage.encode());
-                Message ack = handler.processMessage(parsedMessage, metadata);
-                if (ack != null) {
-                    String ackString = ack.encode();
-                    exchange.setProperty(MllpConstants.MLLP_ACKNOWLEDGEMENT, ackString.getBytes());
-                    exchange.setProperty(MllpConstants.MLLP_ACKNOWLEDGEMENT_STRING, ackString);
-                    LOG.info("=**=> ACK sent: {}", ackString);
-                } else {
-                    LOG.error("No ACK generated; ACK is null");
+                String connectionId = exchange.getIn().getHeader(MllpConstants.MLLP_REMOTE_ADDRESS, String.class);
+                long admitted = admission.admit(connectionId);
+                if (admitted < 0) {
+                    // Refused before any processing: nothing is stored, the sender resends on AR
+                    setAcknowledgement(exchange, listener,
+                        handler.rejectFrame(exchange.getIn().getBody(byte[].class), OVERLOADED));
+                    exchange.setRouteStop(true);
+                    return;
                 }
+                exchange.setProperty(ADMITTED_AT, admitted);
+                exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+                    @Override
+                    public void onDone(Exchange completed) {
+                        releaseAdmission(completed);
+                    }
+                });
             });
+
+        if (FAST_ROUTING) {
+            LOG.info("Header-only fast routing enabled for {}", listener.getPort());
+            route.process(exchange -> {
+                byte[] frame = exchange.getIn().getBody(byte[].class);
+                long start = System.nanoTime();
+                HL7Header header = HL7Header.extract(frame, frame.length);
+                Metrics.UNMARSHAL.recordSince(start);
+                String connectionId = exchange.getIn().getHeader(MllpConstants.MLLP_REMOTE_ADDRESS, String.class);
+                String laneKey = header != null && header.getPatientId() != null ? header.getPatientId() : connectionId;
+                Acknowledgement ack = dispatch(laneKey, frame, () -> handler.processFrame(frame, header));
+                setAcknowledgement(exchange, listener, ack);
+            });
+        } else {
+            route.process(exchange -> unmarshalStart.get()[0] = System.nanoTime())
+                .unmarshal(hl7)
+                .process(exchange -> {
+                    Metrics.UNMARSHAL.recordSince(unmarshalStart.get()[0]);
+                    Message parsedMessage = exchange.getIn().getBody(Message.class);
+                    String connectionId = exchange.getIn().getHeader(MllpConstants.MLLP_REMOTE_ADDRESS, String.class);
+                    byte[] frame = exchange.getProperty(RAW_FRAME, byte[].class);
+                    Map<String, Object> metadata = new HashMap<>();
+                    metadata.put(HL7Handler.RAW_MESSAGE, frame);
+                    // Resolved once here: it picks the lane and is handed on to the handler
+                    String patientId = handler.getPatientIdResolver().resolve(parsedMessage);
+                    Acknowledgement ack = dispatch(patientId != null ? patientId : connectionId, frame,
+                        () -> handler.receive(parsedMessage, metadata, patientId));
+                    setAcknowledgement(exchange, listener, ack);
+                });
+        }
+    }
+
+    // Messages without a patient ID are keyed by connection so they keep their per-connection order.
+    // A message whose lane is full is refused with an AR rather than holding the connection until
+    // there is room; it has not been processed, so the sender's resend is not a duplicate.
+    private Acknowledgement dispatch(String laneKey, byte[] frame, Callable<Acknowledgement> task) throws Exception {
+        if (lanes == null) {
+            return task.call();
+        }
+        try {
+            return lanes.execute(laneKey, task);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Processing lane {} full - refusing message", lanes.laneFor(laneKey));
+            return handler.rejectFrame(frame, OVERLOADED);
+        }
+    }
+
+    // The ACK was encoded once when it was built; the same bytes and text go to Kafka and back
+    // to the sender. The feed's receive-to-ACK time is recorded here, refusals included. The
+    // admission slot is given back before a throttled ACK is held, so holding it neither keeps
+    // other messages waiting nor counts as processing latency.
+    private void setAcknowledgement(Exchange exchange, MllpListener listener, Acknowledgement ack)
+            throws InterruptedException {
+        releaseAdmission(exchange);
+        admission.holdAck(exchange.getIn().getHeader(MllpConstants.MLLP_REMOTE_ADDRESS, String.class));
+        Long receivedAt = exchange.getProperty(RECEIVED_AT, Long.class);
+        if (receivedAt != null) {
+            listener.getLatency().recordSince(receivedAt);
+        }
+        if (ack != null) {
+            exchange.setProperty(MllpConstants.MLLP_ACKNOWLEDGEMENT, ack.getBytes());
+            exchange.setProperty(MllpConstants.MLLP_ACKNOWLEDGEMENT_STRING, ack.getText());
+            if (Boolean.TRUE.equals(exchange.getProperty(PAYLOAD_LOGGED, Boolean.class))) {
+                payloadLogger.ackSent(ack.getText());
+            }
+        } else {
+            LOG.error("No ACK generated; ACK is null");
+        }
+    }
+
+    private void releaseAdmission(Exchange exchange) {
+        Object admitted = exchange.removeProperty(ADMITTED_AT);
+        if (admitted != null) {
+            admission.release((Long) admitted);
+        }
+    }
+
+    // Connections already open are kept when a limit drops; camel-mllp resets new ones beyond it.
+    private void limitConnections() {
+        for (MllpListener listener : listeners) {
+            ThreadPoolExecutor pool = connectionPools.get(listener.getRouteId());
+            int limit = admission.connectionLimit(listener.getMaxConnections());
+            if (pool != null && pool.getMaximumPoolSize() != limit) {
+                pool.setMaximumPoolSize(limit);
+                LOG.info("MLLP listener {} accepts up to {} connections", listener.getName(), limit);
+            }
+        }
+    }
+
+    // Route IDs of all MLLP listeners, so ServerManager can stop and restart them together.
+    public List<String> getRouteIds() {
+        List<String> routeIds = new ArrayList<>(listeners.size());
+        for (MllpListener listener : listeners) {
+            routeIds.add(listener.getRouteId());
+        }
+        return routeIds;
+    }
+
+    public List<MllpListener> getListeners() {
+        return listeners;
     }
 
     public HL7Handler getHandler() {
         return handler; // For ServerManager to close
     }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public StripedExecutor getLanes() {
+        return lanes; // null unless PROCESSING_LANES is set
+    }
 }
\ No newline at end of file
@@ -0,0 +1,639 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Drains every outage backlog source - the outage log and the per-message folders written by
+// earlier versions - with parallel workers. Work is split into lanes by Kafka key, so records
+// for one patient stay in arrival order with their ACK right behind the message, while
+// different patients are published concurrently in batches. Delivery is at-least-once; records
+// the duplicate filter has already seen published are skipped.
+//
+// Both sources are read in chunks of REPLAY_WORKERS x REPLAY_BATCH_SIZE records or files, each
+// published and checkpointed before the next is read, so memory does not grow with the backlog.
+//
+// Log segments are claimed through FileLease before they are read, so replicas sharing the
+// outage volume, and the REPLAY_SEGMENT_WORKERS of one replica, drain disjoint segments at the
+// same time. Order per key holds within a segment; segments drained concurrently can interleave.
+public class ReplayEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayEngine.class);
+    private static final long PROGRESS_LOG_INTERVAL_MS = 10_000;
+    private static final String LEGACY_LEASE = "legacy-replay";
+
+    private final String basePath;
+    private final OutageLog outageLog;
+    private final KafkaSender sender;
+    private final KafkaCircuitBreaker breaker;
+    private final DuplicateFilter duplicates;
+    private final RoutingTable routing;
+    private final int workers;
+    private final int segmentWorkers;
+    private final int batchSize;
+    private final int chunkSize;
+    private final int maxLegacyFilesPerRun;
+    private final long sendTimeoutMs;
+    private final boolean passthrough = KafkaConfig.isPassthrough();
+    private final RateLimiter rateLimiter;
+    private final ReplayGovernor governor;
+    private final ExecutorService executor;
+    private final ExecutorService segmentExecutor;
+
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skippedDuplicates = new AtomicLong();
+    private final AtomicLong remainingRecords = new AtomicLong();
+    private volatile long runStartNanos;
+    private volatile long runStartCount;
+    private volatile double recordsPerSecond;
+    private volatile long lastProgressLog;
+
+    public ReplayEngine(String basePath, OutageLog outageLog, KafkaSender sender, KafkaCircuitBreaker breaker,
+                        DuplicateFilter duplicates, RoutingTable routing) {
+        this.basePath = basePath.endsWith("/") ? basePath : basePath + "/";
+        this.outageLog = outageLog;
+        this.sender = sender;
+        this.breaker = breaker;
+        this.duplicates = duplicates;
+        this.routing = routing;
+        this.workers = EnvConfig.getInt("REPLAY_WORKERS", 4);
+        this.segmentWorkers = Math.max(1, EnvConfig.getInt("REPLAY_SEGMENT_WORKERS", 1));
+        this.batchSize = EnvConfig.getInt("REPLAY_BATCH_SIZE", 500);
+        this.chunkSize = Math.max(1, workers * batchSize);
+        this.maxLegacyFilesPerRun = EnvConfig.getInt("REPLAY_MAX_LEGACY_FILES", 20_000);
+        this.sendTimeoutMs = EnvConfig.getLong("REPLAY_SEND_TIMEOUT_MS", 30_000);
+        this.rateLimiter = new RateLimiter(EnvConfig.getDouble("REPLAY_RATE_PER_SEC", 0));
+        this.governor = new ReplayGovernor(rateLimiter, breaker, replayed::get);
+        this.executor = ThreadSupport.newBlockingPool("replay-worker", workers);
+        this.segmentExecutor = segmentWorkers > 1
+            ? ThreadSupport.newBlockingPool("replay-segment", segmentWorkers) : null;
+        LOG.info("Replay engine: workers={}, segment workers={}, batch={}, rate={}/s", workers, segmentWorkers,
+            batchSize, rateLimiter.getRate() > 0 ? rateLimiter.getRate() : "unlimited");
+        governor.start();
+    }
+
+    // One unit is published in order within its lane: a log record (message + ACK) or a legacy file.
+    private static final class Unit {
+        final String key;
+        final String topic;
+        final List<?> bodies;
+        final String ackTopic;
+        final Object ack;
+        final Path legacyFile;
+        final long endOffset;
+        final long fingerprint;
+        volatile boolean sent;
+
+        Unit(String key, String topic, List<?> bodies, String ackTopic, Object ack, Path legacyFile,
+             long endOffset, long fingerprint) {
+            this.key = key;
+            this.topic = topic;
+            this.bodies = bodies;
+            this.ackTopic = ackTopic;
+            this.ack = ack;
+            this.legacyFile = legacyFile;
+            this.endOffset = endOffset;
+            this.fingerprint = fingerprint;
+        }
+
+        int records() {
+            return bodies.size() + (ack != null ? 1 : 0);
+        }
+    }
+
+    // Drains everything currently in the backlog. Called from the replay route's timer thread;
+    // unless the circuit is closed, the run goes ahead only as the breaker's single trial.
+    public void drain() throws IOException {
+        long trial = 0;
+        if (!breaker.isClosed()) {
+            trial = breaker.tryAcquireTrial();
+            if (trial == 0) {
+                LOG.debug("Kafka circuit open, skipping outage replay");
+                return;
+            }
+        }
+        try {
+            drainBacklog();
+        } finally {
+            // Only the trial this run took, if nothing was sent to decide it, e.g. an empty backlog
+            breaker.releaseTrial(trial);
+        }
+    }
+
+    private void drainBacklog() throws IOException {
+        runStartNanos = System.nanoTime();
+        runStartCount = replayed.get();
+        outageLog.enforceQuotas();
+        outageLog.sealIfCaughtUp();
+
+        // One replica at a time replays the legacy folders
+        try (FileLease lease = FileLease.tryAcquire(Paths.get(basePath + LEGACY_LEASE))) {
+            Map<Path, String> topics = new HashMap<>();
+            List<Path> legacyFiles = lease != null ? listLegacyFiles(topics) : new ArrayList<>();
+            remainingRecords.set(legacyFiles.size() + estimateLogRecords());
+            if (!drainLegacy(legacyFiles, topics)) {
+                LOG.warn("Replay of legacy outage files incomplete - will retry on the next run");
+                return;
+            }
+        }
+
+        // Oldest first; each worker takes the next segment nobody else holds
+        Queue<Path> segments = new ConcurrentLinkedQueue<>(outageLog.sealedSegments());
+        AtomicBoolean stopped = new AtomicBoolean();
+        if (segmentExecutor == null) {
+            drainSegments(segments, stopped);
+        } else {
+            List<Future<?>> drains = new ArrayList<>(segmentWorkers);
+            for (int i = 0; i < segmentWorkers; i++) {
+                drains.add(segmentExecutor.submit(() -> {
+                    drainSegments(segments, stopped);
+                    return null;
+                }));
+            }
+            for (Future<?> drain : drains) {
+                try {
+                    drain.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Replay segment worker failed: {}", e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        long count = replayed.get() - runStartCount;
+        if (count > 0) {
+            LOG.info("Replay run published {} records in {} ms ({} remaining)", count,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStartNanos), remainingRecords.get());
+        }
+    }
+
+    // Stops at the first incomplete segment; publishing has failed and the breaker knows it.
+    private void drainSegments(Queue<Path> segments, AtomicBoolean stopped) throws IOException {
+        Path segment;
+        while (!stopped.get() && (segment = segments.poll()) != null) {
+            FileLease lease = outageLog.claim(segment);
+            if (lease == null) {
+                continue; // another worker or replica has it, or it is still being written
+            }
+            try {
+                if (!drainSegment(segment)) {
+                    stopped.set(true);
+                    return;
+                }
+                lease.closeAndDelete();
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+    // Publishes a claimed segment from its checkpoint, a chunk at a time; true once it has been
+    // consumed.
+    private boolean drainSegment(Path segment) throws IOException {
+        long checkpoint = outageLog.readCheckpoint(segment);
+        try (OutageLog.SegmentReader reader = outageLog.openReader(segment, checkpoint)) {
+            List<Unit> units;
+            while (!(units = readChunk(segment, reader)).isEmpty()) {
+                boolean complete = publish(units);
+
+                // Lanes finish independently; only the in-order prefix of sent records is checkpointed
+                long offset = checkpoint;
+                for (Unit unit : units) {
+                    if (!unit.sent) {
+                        break;
+                    }
+                    offset = unit.endOffset;
+                }
+                if (offset > checkpoint) {
+                    outageLog.writeCheckpoint(segment, offset);
+                    checkpoint = offset;
+                }
+                if (!complete) {
+                    LOG.warn("Replay of {} incomplete - will resume from offset {}", segment.getFileName(), offset);
+                    return false;
+                }
+            }
+            // readChunk only comes back empty at the end; never delete records it did not reach
+            if (!reader.atEnd()) {
+                LOG.error("Replay of {} stopped at offset {} of {} bytes - keeping the segment",
+                    segment.getFileName(), reader.position(), Files.size(segment));
+                return false;
+            }
+        }
+        outageLog.markConsumed(segment);
+        return true;
+    }
+
+    // Publishes units across lanes and returns true when every unit was confirmed.
+    private boolean publish(List<Unit> units) {
+        if (units.isEmpty()) {
+            return true;
+        }
+        List<List<Unit>> lanes = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            lanes.add(new ArrayList<>());
+        }
+        for (Unit unit : units) {
+            int lane = unit.key != null ? Math.floorMod(unit.key.hashCode(), workers) : 0;
+            lanes.get(lane).add(unit);
+        }
+
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (List<Unit> lane : lanes) {
+            if (!lane.isEmpty()) {
+                results.add(executor.submit(() -> publishLane(lane)));
+            }
+        }
+        boolean complete = true;
+        for (Future<Boolean> result : results) {
+            try {
+                complete &= result.get();
+            } catch (Exception e) {
+                LOG.error("Replay worker failed: {}", e.getMessage());
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    // Publishes one lane in batches; stops at the first failure so later records for the same
+    // patient are not delivered ahead of an earlier one.
+    private boolean publishLane(List<Unit> lane) {
+        for (int from = 0; from < lane.size(); from += batchSize) {
+            if (!breaker.isAvailable()) {
+                return false; // another lane has just found Kafka down
+            }
+            List<Unit> batch = lane.subList(from, Math.min(lane.size(), from + batchSize));
+            // Reserving also skips a retransmit stored twice during an outage next to its original.
+            // A key in flight is skipped as well: if that publish fails, its copy is stored or
+            // rejected back to the sender, so this one is not needed.
+            boolean[] skip = new boolean[batch.size()];
+            int records = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                Unit unit = batch.get(i);
+                if (duplicates.reserve(unit.fingerprint, DuplicateFilter.Source.REPLAY)
+                        != DuplicateFilter.Reservation.RESERVED) {
+                    skip[i] = true;
+                } else {
+                    records += unit.records();
+                }
+            }
+            rateLimiter.acquire(records);
+
+            List<List<CompletableFuture<Exchange>>> sends = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Unit unit = batch.get(i);
+                if (skip[i]) {
+                    sends.add(null);
+                    continue;
+                }
+                List<CompletableFuture<Exchange>> unitSends = new ArrayList<>(unit.records());
+                for (Object body : unit.bodies) {
+                    unitSends.add(sender.send(unit.topic, body, unit.key));
+                }
+                if (unit.ack != null) {
+                    unitSends.add(sender.send(unit.ackTopic, unit.ack, unit.key));
+                }
+                sends.add(unitSends);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                Unit unit = batch.get(i);
+                if (skip[i]) {
+                    unit.sent = true;
+                    skippedDuplicates.addAndGet(unit.records());
+                } else if (!confirmed(sends.get(i))) {
+                    failed.incrementAndGet();
+                    breaker.recordFailure();
+                    // Not checkpointed, so this unit and the rest of the batch are replayed again
+                    for (int j = i; j < batch.size(); j++) {
+                        if (!skip[j]) {
+                            duplicates.release(batch.get(j).fingerprint);
+                        }
+                    }
+                    return false;
+                } else {
+                    unit.sent = true;
+                    duplicates.confirm(unit.fingerprint);
+                    replayed.addAndGet(unit.records());
+                }
+                remainingRecords.updateAndGet(r -> Math.max(0, r - unit.records()));
+            }
+            breaker.recordSuccess();
+            logProgress();
+        }
+        return true;
+    }
+
+    private boolean confirmed(List<CompletableFuture<Exchange>> sends) {
+        for (CompletableFuture<Exchange> send : sends) {
+            try {
+                Exchange exchange = send.get(sendTimeoutMs, TimeUnit.MILLISECONDS);
+                if (exchange.getException() != null) {
+                    LOG.error("Failed to replay record: {}", exchange.getException().getMessage());
+                    return false;
+                }
+            } catch (Exception e) {
+                LOG.error("Failed to replay record: {}", e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Up to chunkSize units from where the reader is; empty at the end of the segment.
+    private List<Unit> readChunk(Path segment, OutageLog.SegmentReader reader) throws IOException {
+        List<Unit> units = new ArrayList<>();
+        OutageLog.Record record;
+        while (units.size() < chunkSize && (record = nextRecord(segment, reader, units)) != null) {
+            // Passthrough sends the stored bytes unchanged; otherwise they are the UTF-8 the
+            // String serializer wrote
+            List<Object> bodies = new ArrayList<>(1);
+            bodies.add(passthrough ? record.getMessage() : new String(record.getMessage(), StandardCharsets.UTF_8));
+            Object ack = record.getAck() == null ? null
+                : passthrough ? record.getAck() : new String(record.getAck(), StandardCharsets.UTF_8);
+            byte[] message = record.getMessage();
+            units.add(new Unit(record.getKey(), record.getTopic(), bodies, record.getTopic() + "-ACK", ack, null,
+                record.getEndOffset(), DuplicateFilter.fingerprint(HL7Header.extract(message, message.length))));
+        }
+        return units;
+    }
+
+    // The next decodable record, or null at the end of the segment. An undecodable record or a
+    // corrupt span is quarantined and leaves an empty unit, which counts as sent, so the
+    // checkpoint moves past it.
+    private OutageLog.Record nextRecord(Path segment, OutageLog.SegmentReader reader, List<Unit> units)
+            throws IOException {
+        while (true) {
+            long endOffset;
+            try {
+                OutageLog.Record record = reader.next();
+                if (record != null || reader.atEnd()) {
+                    return record;
+                }
+                outageLog.skipCorrupt(segment, reader);
+                endOffset = reader.position();
+            } catch (OutageLog.UndecodableRecordException e) {
+                outageLog.quarantine(segment, e);
+                endOffset = e.getEndOffset();
+            }
+            units.add(new Unit(null, null, new ArrayList<>(), null, null, null, endOffset, DuplicateFilter.EMPTY));
+        }
+    }
+
+    // Legacy files: msg_<millis>.hl7 in <FOLDER>/ and ack_<millis>.hl7 in <FOLDER>-ACKS/, with the
+    // folder -> topic mapping taken from the routing table's legacy folders. A file can
+    // hold several newline-terminated messages written in the same millisecond. ACKs are keyed
+    // through MSA-2 to the control ID of their message so they share its lane.
+    private List<Path> listLegacyFiles(Map<Path, String> topics) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Map.Entry<String, String> entry : routing.getLegacyFolders().entrySet()) {
+            collect(Paths.get(basePath + entry.getKey()), entry.getValue(), files, topics);
+            collect(Paths.get(basePath + entry.getKey() + "-ACKS"), entry.getValue() + "-ACK", files, topics);
+        }
+        // Arrival order: by timestamp, a message before the ACK written in the same save
+        files.sort(Comparator.comparingLong(ReplayEngine::legacyTimestamp)
+            .thenComparing(p -> p.getFileName().toString().startsWith("ack_") ? 1 : 0));
+        if (files.size() > maxLegacyFilesPerRun) {
+            files = new ArrayList<>(files.subList(0, maxLegacyFilesPerRun));
+        }
+        return files;
+    }
+
+    // Reads, publishes and moves the files a chunk at a time; false at the first incomplete chunk.
+    private boolean drainLegacy(List<Path> files, Map<Path, String> topics) throws IOException {
+        // Spans chunks, so an ACK finds the key of a message read in an earlier one
+        Map<String, String> keyByControlId = new HashMap<>();
+        for (int from = 0; from < files.size(); from += chunkSize) {
+            List<Unit> units = loadLegacyUnits(files.subList(from, Math.min(files.size(), from + chunkSize)), topics,
+                keyByControlId);
+            boolean complete = publish(units);
+            moveSentLegacyFiles(units);
+            if (!complete) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Unit> loadLegacyUnits(List<Path> files, Map<Path, String> topics,
+                                       Map<String, String> keyByControlId) throws IOException {
+        List<Unit> units = new ArrayList<>(files.size());
+        for (Path file : files) {
+            List<String> bodies = new ArrayList<>();
+            for (String line : new String(Files.readAllBytes(file), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    bodies.add(line);
+                }
+            }
+            if (bodies.isEmpty()) {
+                units.add(new Unit(null, topics.get(file), bodies, null, null, file, 0, DuplicateFilter.EMPTY));
+                continue;
+            }
+            String topic = topics.get(file);
+            String key;
+            long fingerprint = DuplicateFilter.EMPTY;
+            if (topic.endsWith("-ACK")) {
+                key = keyByControlId.get(ackedControlId(bodies.get(0)));
+            } else {
+                HL7Header header = legacyHeader(bodies.get(0));
+                key = header != null ? header.getPatientId() : null;
+                if (bodies.size() == 1) {
+                    // Files holding several messages are always published whole
+                    fingerprint = DuplicateFilter.fingerprint(header);
+                }
+                for (String body : bodies) {
+                    HL7Header h = legacyHeader(body);
+                    if (h != null && h.getControlId() != null) {
+                        keyByControlId.put(h.getControlId(), h.getPatientId());
+                    }
+                }
+            }
+            units.add(new Unit(key, topic, bodies, null, null, file, 0, fingerprint));
+        }
+        return units;
+    }
+
+    // Legacy bodies were read back as UTF-8 text; the header is read from the bytes the sender's
+    // charset gives them, as it would have been from the original frame.
+    private static HL7Header legacyHeader(String body) {
+        byte[] bytes = body.getBytes(HL7Header.charsetOf(body));
+        return HL7Header.extract(bytes, bytes.length);
+    }
+
+    private static void collect(Path folder, String topic, List<Path> files, Map<Path, String> topics)
+            throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.list(folder)) {
+            for (Path file : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                files.add(file);
+                topics.put(file, topic);
+            }
+        }
+    }
+
+    private static long legacyTimestamp(Path file) {
+        String name = file.getFileName().toString();
+        int underscore = name.indexOf('_');
+        int dot = name.lastIndexOf('.');
+        try {
+            return Long.parseLong(name.substring(underscore + 1, dot));
+        } catch (RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // MSA-2 of an ACK, i.e. the control ID of the acknowledged message.
+    private static String ackedControlId(String ack) {
+        int msa = ack.indexOf("\rMSA");
+        if (msa < 0) {
+            return null;
+        }
+        String[] fields = ack.substring(msa + 1).split("\r", 2)[0].split("\\|");
+        return fields.length > 2 ? fields[2] : null;
+    }
+
+    private void moveSentLegacyFiles(List<Unit> units) {
+        for (Unit unit : units) {
+            if (!unit.sent && !unit.bodies.isEmpty()) {
+                continue;
+            }
+            Path target = Paths.get(basePath + "processed/" + unit.legacyFile.getFileName());
+            try {
+                Files.createDirectories(target.getParent());
+                Files.move(unit.legacyFile, target);
+                LOG.debug("Moved to processed: {}", unit.legacyFile.getFileName());
+            } catch (IOException e) {
+                LOG.error("Failed to move replayed file {}: {}", unit.legacyFile, e.getMessage());
+            }
+        }
+    }
+
+    // Rough record count for the log backlog, from its size and the average stored record size
+    // (or an average HL7 message + ACK before anything was written in this process).
+    private long estimateLogRecords() {
+        long average = outageLog.getAverageRecordBytes();
+        return outageLog.getBacklogBytes() / (average > 0 ? average : 2048);
+    }
+
+    private void logProgress() {
+        long elapsed = System.nanoTime() - runStartNanos;
+        if (elapsed > 0) {
+            recordsPerSecond = (replayed.get() - runStartCount) * 1_000_000_000d / elapsed;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastProgressLog < PROGRESS_LOG_INTERVAL_MS) {
+            return;
+        }
+        lastProgressLog = now;
+        LOG.info("Replay progress: {} replayed, {} remaining, {} records/s, ETA {}s",
+            replayed.get(), remainingRecords.get(), Math.round(recordsPerSecond), getEtaSeconds());
+    }
+
+    public long getReplayedRecords() {
+        return replayed.get();
+    }
+
+    public long getFailedBatches() {
+        return failed.get();
+    }
+
+    public long getSkippedDuplicates() {
+        return skippedDuplicates.get();
+    }
+
+    public long getRemainingRecords() {
+        return remainingRecords.get();
+    }
+
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    public long getEtaSeconds() {
+        return recordsPerSecond > 0 ? Math.round(remainingRecords.get() / recordsPerSecond) : -1;
+    }
+
+    public ReplayGovernor getGovernor() {
+        return governor;
+    }
+
+    public void close() {
+        governor.close();
+        if (segmentExecutor != null) {
+            segmentExecutor.shutdownNow();
+        }
+        executor.shutdownNow();
+        sender.close();
+    }
+
+    // Simple token bucket shared by all workers; a rate of 0 means unlimited.
+    static final class RateLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile double rate;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(double rate) {
+            this.rate = rate;
+        }
+
+        double getRate() {
+            return rate;
+        }
+
+        void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        void acquire(int permits) {
+            double current = rate;
+            if (current <= 0) {
+                return;
+            }
+            long waitNanos;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextFreeNanos);
+                nextFreeNanos = start + (long) (permits * 1_000_000_000d / current);
+                waitNanos = start - now;
+            } finally {
+                lock.unlock();
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Gives live traffic priority over outage replay on the shared producer and brokers. Every
+// REPLAY_GOVERNOR_INTERVAL_MS the replay rate limit is set from the average live Kafka publish
+// latency of the interval (the kafka_send stage), much as AdmissionController sets its in-flight
+// limit: halved while live latency is above REPLAY_LIVE_TARGET_LATENCY_MS, raised by a tenth
+// while it is below and replay is using its allowance. After every Kafka outage, when senders are
+// retransmitting too, replay starts again from REPLAY_START_RATE.
+//
+// Under pressure replay keeps REPLAY_WEIGHT records per second for every REPLAY_LIVE_WEIGHT live
+// messages per second, so the backlog still drains; a REPLAY_WEIGHT of 0 gives live traffic
+// strict priority and holds replay at REPLAY_MIN_RATE. Live latency comes from the metrics, so
+// with METRICS_ENABLED=false the limit only follows the weights' floor and the ramp.
+public class ReplayGovernor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayGovernor.class);
+
+    private final ReplayEngine.RateLimiter limiter;
+    private final KafkaCircuitBreaker breaker;
+    private final LongSupplier replayedRecords;
+    private final boolean enabled;
+    private final long targetLatencyNanos;
+    private final double minRate;
+    private final double maxRate;
+    private final double startRate;
+    private final double liveWeight;
+    private final double replayWeight;
+    private final long intervalMs;
+
+    private volatile boolean restart;
+    private volatile double liveLatencyMs;
+    private volatile double liveRate;
+    private long lastLiveCount;
+    private long lastLiveSumNanos;
+    private long lastReplayed;
+    private long lastNanos;
+    private ScheduledExecutorService scheduler;
+
+    ReplayGovernor(ReplayEngine.RateLimiter limiter, KafkaCircuitBreaker breaker, LongSupplier replayedRecords) {
+        this.limiter = limiter;
+        this.breaker = breaker;
+        this.replayedRecords = replayedRecords;
+        this.enabled = EnvConfig.getBoolean("REPLAY_ADAPTIVE", true);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(
+            EnvConfig.getLong("REPLAY_LIVE_TARGET_LATENCY_MS", 100));
+        // A fixed REPLAY_RATE_PER_SEC stays the ceiling
+        double configured = limiter.getRate();
+        this.maxRate = configured > 0 ? configured : EnvConfig.getDouble("REPLAY_MAX_RATE", 10_000);
+        this.minRate = Math.min(maxRate, Math.max(1, EnvConfig.getDouble("REPLAY_MIN_RATE", 10)));
+        this.startRate = Math.min(maxRate, Math.max(minRate, EnvConfig.getDouble("REPLAY_START_RATE", 200)));
+        this.liveWeight = Math.max(1, EnvConfig.getDouble("REPLAY_LIVE_WEIGHT", 4));
+        this.replayWeight = Math.max(0, EnvConfig.getDouble("REPLAY_WEIGHT", 1));
+        this.intervalMs = Math.max(100, EnvConfig.getLong("REPLAY_GOVERNOR_INTERVAL_MS", 1000));
+    }
+
+    public void start() {
+        if (!enabled) {
+            LOG.info("Adaptive replay rate disabled");
+            return;
+        }
+        limiter.setRate(startRate);
+        lastLiveCount = Metrics.KAFKA_SEND.getCount();
+        lastLiveSumNanos = Metrics.KAFKA_SEND.getSumNanos();
+        lastReplayed = replayedRecords.getAsLong();
+        lastNanos = System.nanoTime();
+        // Any state but closed means an outage, even while a trial send is deciding
+        breaker.addListener(state -> {
+            if (state != KafkaCircuitBreaker.State.CLOSED) {
+                restart = true;
+            }
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(ThreadSupport.factory("replay-governor"));
+        scheduler.scheduleWithFixedDelay(this::evaluate, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        LOG.info("Adaptive replay rate: {}..{} records/s starting at {}, live target latency {}ms, weights live={} "
+            + "replay={}", minRate, maxRate, startRate, TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos),
+            liveWeight, replayWeight);
+    }
+
+    void evaluate() {
+        try {
+            adjustRate();
+        } catch (RuntimeException e) {
+            LOG.error("Replay rate evaluation failed", e);
+        }
+    }
+
+    private void adjustRate() {
+        long now = System.nanoTime();
+        long liveCount = Metrics.KAFKA_SEND.getCount();
+        long liveSum = Metrics.KAFKA_SEND.getSumNanos();
+        long replayed = replayedRecords.getAsLong();
+        double seconds = Math.max(1e-3, (now - lastNanos) / 1e9);
+        long sent = liveCount - lastLiveCount;
+        long averageNanos = sent > 0 ? (liveSum - lastLiveSumNanos) / sent : 0;
+        double replayRate = (replayed - lastReplayed) / seconds;
+        lastNanos = now;
+        lastLiveCount = liveCount;
+        lastLiveSumNanos = liveSum;
+        lastReplayed = replayed;
+        liveRate = sent / seconds;
+        liveLatencyMs = averageNanos / 1e6;
+
+        double current = limiter.getRate();
+        double next;
+        if (restart) {
+            restart = false;
+            next = startRate;
+        } else if (averageNanos > targetLatencyNanos) {
+            // Live traffic is suffering: back off, but not below the weighted share
+            double share = liveRate * replayWeight / liveWeight;
+            next = Math.max(current / 2, Math.min(share, current));
+        } else if (replayRate >= current * 0.9) {
+            next = current * 1.1;
+        } else {
+            next = current;
+        }
+        next = Math.min(maxRate, Math.max(minRate, next));
+        if (next != current) {
+            limiter.setRate(next);
+            LOG.debug("Replay rate {} -> {} records/s (live {} msg/s at {}ms, replay {} records/s)",
+                Math.round(current), Math.round(next), Math.round(liveRate),
+                TimeUnit.NANOSECONDS.toMillis(averageNanos), Math.round(replayRate));
+        }
+    }
+
+    public double getRateLimit() {
+        return limiter.getRate();
+    }
+
+    public double getLiveLatencyMs() {
+        return liveLatencyMs;
+    }
+
+    public double getLiveRate() {
+        return liveRate;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
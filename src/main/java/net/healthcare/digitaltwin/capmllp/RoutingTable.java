@@ -0,0 +1,356 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Declarative message routing: which topic a message goes to, decided on MSH-9 type and trigger,
+// MSH-4 sending facility and MSH-12 version. The table (see routing.properties) is compiled into
+// a map from message type to the ordered rules that can match it, so a lookup is one hash probe
+// and a scan of a few rules. Topic verification and legacy outage replay read the same table.
+//
+// ROUTING_TABLE_FILE replaces the built-in table. The file is checked every
+// ROUTING_RELOAD_INTERVAL_MS; a changed file is compiled in full and swapped in atomically, and
+// one that fails to compile is logged and ignored, so the previous table stays in force.
+public final class RoutingTable implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingTable.class);
+    private static final String BUILT_IN = "/routing.properties";
+    private static final String ANY = "*";
+    private static final Pattern TOPIC_NAME = Pattern.compile("[a-zA-Z0-9._-]{1,249}");
+
+    private final Path file;
+    private final long reloadIntervalMs;
+    private final List<Consumer<RoutingTable>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Compiled compiled;
+    private FileTime loadedModified;
+    private long loadedSize;
+    private ScheduledExecutorService watcher;
+
+    // A destination topic; its ACK records go to ackTopic.
+    public static final class Route {
+        private final String name;
+        private final String topic;
+        private final String ackTopic;
+        private final String description;
+        private final String legacyFolder;
+
+        Route(String name, String topic, String description, String legacyFolder) {
+            this.name = name;
+            this.topic = topic;
+            this.ackTopic = topic + "-ACK";
+            this.description = description;
+            this.legacyFolder = legacyFolder;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getAckTopic() {
+            return ackTopic;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        // Folder the per-message MessageStore of earlier versions used for this topic, or null.
+        public String getLegacyFolder() {
+            return legacyFolder;
+        }
+    }
+
+    // null sets match anything.
+    private static final class Rule {
+        final Route route;
+        final Set<String> triggers;
+        final Set<String> facilities;
+        final Set<String> versions;
+
+        Rule(Route route, Set<String> triggers, Set<String> facilities, Set<String> versions) {
+            this.route = route;
+            this.triggers = triggers;
+            this.facilities = facilities;
+            this.versions = versions;
+        }
+
+        boolean matches(String trigger, String facility, String version) {
+            return (triggers == null || triggers.contains(trigger))
+                && (facilities == null || facilities.contains(facility))
+                && (versions == null || versions.contains(version));
+        }
+    }
+
+    private static final class Compiled {
+        final Map<String, Rule[]> byType;
+        final Rule[] anyType; // rules for types no rule names explicitly
+        final List<Route> routes;
+        final Route error;
+
+        Compiled(Map<String, Rule[]> byType, Rule[] anyType, List<Route> routes, Route error) {
+            this.byType = byType;
+            this.anyType = anyType;
+            this.routes = routes;
+            this.error = error;
+        }
+    }
+
+    RoutingTable(Path file, long reloadIntervalMs) {
+        this.file = file;
+        this.reloadIntervalMs = reloadIntervalMs;
+        try {
+            this.compiled = load();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Cannot load routing table " + (file != null ? file : BUILT_IN)
+                + ": " + e.getMessage(), e);
+        }
+        LOG.info("Routing table {}: {}", file != null ? file : "built-in", describe(compiled));
+    }
+
+    public static RoutingTable fromEnvironment() {
+        String path = EnvConfig.get("ROUTING_TABLE_FILE", null);
+        return new RoutingTable(path != null ? Paths.get(path) : null,
+            EnvConfig.getLong("ROUTING_RELOAD_INTERVAL_MS", 10_000));
+    }
+
+    // The route for a message, or null when no rule matches and the message is an error.
+    public Route route(String type, String trigger, String facility, String version) {
+        Compiled current = compiled;
+        Rule[] rules = type != null ? current.byType.get(type) : null;
+        if (rules == null) {
+            rules = current.anyType;
+        }
+        for (Rule rule : rules) {
+            if (rule.matches(trigger, facility, version)) {
+                Metrics.countRoute(rule.route.name);
+                return rule.route;
+            }
+        }
+        Metrics.countRoute("unmatched");
+        return null;
+    }
+
+    public Route getErrorRoute() {
+        return compiled.error;
+    }
+
+    public List<Route> getRoutes() {
+        return compiled.routes;
+    }
+
+    // Every topic and ACK topic the table can publish to, the error topics included.
+    public Set<String> getTopics() {
+        Compiled current = compiled;
+        Set<String> topics = new LinkedHashSet<>();
+        for (Route route : current.routes) {
+            topics.add(route.topic);
+            topics.add(route.ackTopic);
+        }
+        topics.add(current.error.topic);
+        topics.add(current.error.ackTopic);
+        return topics;
+    }
+
+    // Legacy outage folder -> topic, for the routes that name one.
+    public Map<String, String> getLegacyFolders() {
+        Compiled current = compiled;
+        Map<String, String> folders = new LinkedHashMap<>();
+        for (Route route : current.routes) {
+            if (route.legacyFolder != null) {
+                folders.putIfAbsent(route.legacyFolder, route.topic);
+            }
+        }
+        if (current.error.legacyFolder != null) {
+            folders.putIfAbsent(current.error.legacyFolder, current.error.topic);
+        }
+        return folders;
+    }
+
+    // Called on the watcher thread after a new table has been swapped in.
+    public void addListener(Consumer<RoutingTable> listener) {
+        listeners.add(listener);
+    }
+
+    public void start() {
+        if (file == null || reloadIntervalMs <= 0) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(ThreadSupport.factory("routing-table-watcher"));
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged, reloadIntervalMs, reloadIntervalMs,
+            TimeUnit.MILLISECONDS);
+    }
+
+    void reloadIfChanged() {
+        try {
+            // Follows symlinks, so a ConfigMap update (a swapped ..data link) shows up as a new time
+            FileTime modified = Files.getLastModifiedTime(file);
+            long size = Files.size(file);
+            if (modified.equals(loadedModified) && size == loadedSize) {
+                return;
+            }
+            compiled = load();
+            LOG.info("Routing table reloaded from {}: {}", file, describe(compiled));
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.error("Routing table {} not reloaded, keeping the current one: {}", file, e.getMessage());
+            return;
+        }
+        for (Consumer<RoutingTable> listener : listeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                LOG.error("Routing table listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private Compiled load() throws IOException {
+        Properties properties = new Properties();
+        if (file == null) {
+            try (InputStream in = RoutingTable.class.getResourceAsStream(BUILT_IN)) {
+                if (in == null) {
+                    throw new IOException("resource not found");
+                }
+                properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        } else {
+            FileTime modified = Files.getLastModifiedTime(file);
+            long size = Files.size(file);
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            // Recorded even when the table is invalid, so a broken file is reported once per change
+            loadedModified = modified;
+            loadedSize = size;
+        }
+        return compile(properties);
+    }
+
+    private static Compiled compile(Properties properties) {
+        List<String> names = list(properties.getProperty("routes"));
+        if (names == null) {
+            throw new IllegalArgumentException("no routes listed");
+        }
+        List<Route> routes = new ArrayList<>(names.size());
+        List<Rule> rules = new ArrayList<>(names.size());
+        Map<String, String> types = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (String name : names) {
+            if (!seen.add(name)) {
+                throw new IllegalArgumentException("route " + name + " listed twice");
+            }
+            String prefix = "route." + name + ".";
+            String type = required(properties, prefix + "type");
+            Route route = new Route(name, topic(properties, prefix + "topic"),
+                properties.getProperty(prefix + "description", "").trim(), optional(properties, prefix + "folder"));
+            routes.add(route);
+            rules.add(new Rule(route, set(properties.getProperty(prefix + "trigger")),
+                set(properties.getProperty(prefix + "facility")), set(properties.getProperty(prefix + "version"))));
+            types.put(name, type);
+        }
+        Route error = new Route("error", topic(properties, "error.topic"),
+            properties.getProperty("error.description", "").trim(), optional(properties, "error.folder"));
+
+        // Each explicitly named type gets the rules for it and the wildcard rules, in table order
+        Map<String, Rule[]> byType = new HashMap<>();
+        List<Rule> anyType = new ArrayList<>();
+        for (Rule rule : rules) {
+            String type = types.get(rule.route.name);
+            if (ANY.equals(type)) {
+                anyType.add(rule);
+            } else if (!byType.containsKey(type)) {
+                List<Rule> forType = new ArrayList<>();
+                for (Rule candidate : rules) {
+                    String candidateType = types.get(candidate.route.name);
+                    if (type.equals(candidateType) || ANY.equals(candidateType)) {
+                        forType.add(candidate);
+                    }
+                }
+                byType.put(type, forType.toArray(new Rule[0]));
+            }
+        }
+        return new Compiled(byType, anyType.toArray(new Rule[0]), Collections.unmodifiableList(routes), error);
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = optional(properties, key);
+        if (value == null) {
+            throw new IllegalArgumentException(key + " is missing");
+        }
+        return value;
+    }
+
+    private static String optional(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        return value != null && !value.trim().isEmpty() ? value.trim() : null;
+    }
+
+    private static String topic(Properties properties, String key) {
+        String topic = required(properties, key);
+        if (!TOPIC_NAME.matcher(topic).matches()) {
+            throw new IllegalArgumentException(key + " is not a valid Kafka topic name: " + topic);
+        }
+        return topic;
+    }
+
+    private static List<String> list(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                values.add(part.trim());
+            }
+        }
+        return values.isEmpty() ? null : values;
+    }
+
+    private static Set<String> set(String value) {
+        List<String> values = list(value);
+        return values == null || values.contains(ANY) ? null : new HashSet<>(values);
+    }
+
+    private static String describe(Compiled table) {
+        StringBuilder out = new StringBuilder();
+        for (Route route : table.routes) {
+            out.append(route.name).append(" -> ").append(route.topic).append(", ");
+        }
+        return out.append("unmatched -> ").append(table.error.topic).toString();
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+}
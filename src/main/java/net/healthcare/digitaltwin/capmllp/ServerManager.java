@@ -1,8 +1,10 @@
 package net.healthcare.digitaltwin.capmllp;
 
 import org.apache.camel.CamelContext;
+import org.apache.camel.ServiceStatus;
 import org.apache.camel.impl.DefaultCamelContext;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -10,24 +12,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ServerManager {
-    private static final String BROKER_ADDRESS = KafkaConfig.getBrokerAddress();
     private static final Logger LOG = LoggerFactory.getLogger(ServerManager.class);
     private static final int HEALTH_PORT = 8443;
     private static final String SERVICE_NAME = System.getenv("KUBERNETES_SERVICE_NAME");
     private static final String BASE_PATH = "/var/log/" + SERVICE_NAME + "/outage-messages/";
-    private static final int KAFKA_HEALTH_CHECK_INTERVAL = 60; // Seconds
-    private static final int KAFKA_MAX_DOWN_TIME = 12 * 60 * 60; // Seconds (12 hours)
-    private static final String MLLP_ROUTE_ID = "mllp-receiver"; // Matches Receiver
-
-    // Route IDs from ReplayManager (must match exactly)
-    private static final String[] REPLAY_ROUTE_IDS = {
-        "ADT-replay-route",
-        "ADT-ACKS-replay-route",
-        "ORU-replay-route",
-        "ORU-ACKS-replay-route",
-        "ERROR-replay-route",
-        "ERROR-ACKS-replay-route"
-    };
+    // Warm-up, background topic verification and (in start-mllp.sh) the AppCDS archive
+    private static final boolean FAST_STARTUP = EnvConfig.getBoolean("FAST_STARTUP", false);
+    private static final int WARMUP_MESSAGES = EnvConfig.getInt("STARTUP_WARMUP_MESSAGES", 2000);
+    private static final long TOPIC_VERIFY_RETRY_MS = 30_000;
+    private static final long HEALTH_SNAPSHOT_INTERVAL_MS = EnvConfig.getLong("HEALTH_SNAPSHOT_INTERVAL_MS", 1000);
+    private static final int KAFKA_HEALTH_CHECK_INTERVAL = 60; // Seconds; breaker transitions are handled immediately
 
     private static volatile boolean kafkaDown = false; // Start assuming UP
     private static volatile long kafkaDownStartTime = 0;
@@ -35,44 +29,221 @@ public class ServerManager {
     private CamelContext camel;
     private HealthServer healthServer;
     private HL7Handler handler;
+    private StripedExecutor lanes;
+    private List<String> mllpRouteIds;
+    private RoutingTable routing;
+    private KafkaCircuitBreaker breaker;
+    private AdmissionController admission;
+    private ReplayManager replayManager;
     private ScheduledExecutorService healthCheckScheduler;
-    private boolean mllpStopped = false; // Track MLLP state
+    private ScheduledExecutorService snapshotScheduler;
+    private volatile boolean started;
+    private volatile boolean mllpStopped = false; // Track MLLP state
+    private volatile long startupMs;
 
     public static void main(String[] args) throws Exception {
+        ThreadSupport.configureCamel();
+        if (args.length > 0 && "--cds-training".equals(args[0])) {
+            // Image build only: see Dockerfile
+            StartupWarmup.train(WARMUP_MESSAGES);
+            System.exit(0);
+        }
         ServerManager manager = new ServerManager();
         manager.start();
     }
 
     public void start() throws Exception {
-        // Ensure topics exist before starting anything
-        try {
-            KafkaConfig.verifyTopicsExist();
-            LOG.info("Verified/created Kafka topics on startup");
-        } catch (Exception e) {
-            LOG.error("Failed to verify/create Kafka topics on startup", e);
-            throw e; // Optional: fail fast if critical
+        routing = RoutingTable.fromEnvironment();
+        if (FAST_STARTUP) {
+            // Messages for a topic that does not exist yet fail over to the outage store and are replayed
+            verifyTopicsInBackground();
+        } else {
+            // Ensure the routing table's topics exist before starting anything
+            try {
+                KafkaConfig.verifyTopicsExist(routing.getTopics());
+                LOG.info("Verified/created Kafka topics on startup");
+            } catch (Exception e) {
+                LOG.error("Failed to verify/create Kafka topics on startup", e);
+                throw e; // Optional: fail fast if critical
+            }
         }
-        
+
         camel = new DefaultCamelContext();
         camel.addComponent("kafka", KafkaConfig.createKafkaComponent());
 
-        Receiver receiver = new Receiver(camel, BASE_PATH);
+        breaker = new KafkaCircuitBreaker(KafkaConfig.createAdminProperties());
+        Receiver receiver = new Receiver(camel, BASE_PATH, breaker, routing);
         this.handler = receiver.getHandler();
+        this.lanes = receiver.getLanes();
+        this.admission = receiver.getAdmission();
+        this.mllpRouteIds = receiver.getRouteIds();
         camel.addRoutes(receiver);
 
-        ReplayManager replayManager = new ReplayManager(BASE_PATH);
+        // Live and replay publishing share one duplicate filter
+        replayManager = new ReplayManager(BASE_PATH, handler.getMessageStore().getOutageLog(), breaker,
+            handler.getDuplicateFilter(), routing);
         camel.addRoutes(replayManager);
 
+        // Topics added by a reloaded table are created straight away
+        routing.addListener(table -> {
+            try {
+                KafkaConfig.verifyTopicsExist(table.getTopics());
+            } catch (Exception e) {
+                LOG.error("Failed to verify/create Kafka topics for the reloaded routing table: {}", e.getMessage());
+            }
+        });
+        routing.start();
+
+        registerMetrics();
+
         healthServer = new HealthServer(HEALTH_PORT);
         healthServer.start();
 
-        LOG.info("Starting MLLP server and replay routes");
+        if (FAST_STARTUP && WARMUP_MESSAGES > 0) {
+            new StartupWarmup(handler, FrameNormalizer.fromEnvironment()).run(WARMUP_MESSAGES);
+        }
+
+        LOG.info("Starting MLLP server and replay route");
         camel.start();
+        startupMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        started = true;
+        // Only now: the routes the snapshot reads exist, and until the first one /live answers from
+        // the starting snapshot, so a slow warm-up cannot fail liveness
+        startHealthSnapshots();
+        LOG.info("MLLP listeners open {} ms after JVM start", startupMs);
         
         // Initial health check and route state setup
         initializeSystemState();
         
         startKafkaHealthCheck();
+
+        admission.addListener(this::handleAdmissionLevel);
+        admission.start();
+    }
+
+    private void verifyTopicsInBackground() {
+        Thread verifier = ThreadSupport.factory("topic-verification").newThread(() -> {
+            while (true) {
+                try {
+                    KafkaConfig.verifyTopicsExist(routing.getTopics());
+                    LOG.info("Verified/created Kafka topics in the background");
+                    return;
+                } catch (Exception e) {
+                    LOG.error("Background Kafka topic verification failed, retrying in {}s: {}",
+                        TOPIC_VERIFY_RETRY_MS / 1000, e.getMessage());
+                }
+                try {
+                    Thread.sleep(TOPIC_VERIFY_RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        verifier.start();
+    }
+
+    private void startHealthSnapshots() {
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(ThreadSupport.factory("health-snapshot"));
+        snapshotScheduler.scheduleWithFixedDelay(this::refreshHealthSnapshot, 0, HEALTH_SNAPSHOT_INTERVAL_MS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    // Reads only volatile state and counters, never a lock on the message path.
+    private void refreshHealthSnapshot() {
+        try {
+            OutageLog outageLog = handler.getMessageStore().getOutageLog();
+            int listenersUp = 0;
+            for (String routeId : mllpRouteIds) {
+                ServiceStatus status = camel.getRouteController().getRouteStatus(routeId);
+                if (status != null && status.isStarted()) {
+                    listenersUp++;
+                }
+            }
+            healthServer.update(new HealthSnapshot(System.currentTimeMillis(), started, camel.isStarted(),
+                isKafkaOperational(), outageLog.isQuotaReached(), outageLog.getUsedBytes(), outageLog.getMaxBytes(),
+                admission.getLevel(), admission.getInFlight(), admission.getLimit(), listenersUp,
+                mllpRouteIds.size()));
+        } catch (RuntimeException e) {
+            // A stale snapshot turns liveness off, so a persistent failure here restarts the pod
+            LOG.error("Failed to refresh health snapshot: {}", e.getMessage());
+        }
+    }
+
+    private void registerMetrics() {
+        Metrics.registerGauge("startup_seconds", "Time from JVM start until the MLLP listeners opened", "",
+            () -> startupMs / 1000.0);
+        OutageLog outageLog = handler.getMessageStore().getOutageLog();
+        ReplayEngine engine = replayManager.getEngine();
+        Metrics.registerGauge("outage_backlog_bytes", "Bytes waiting in the outage log", "",
+            outageLog::getBacklogBytes);
+        Metrics.registerGauge("outage_used_bytes", "Bytes on disk in outage log segments", "",
+            outageLog::getUsedBytes);
+        Metrics.registerGauge("outage_compression_ratio",
+            "Uncompressed over stored size of outage records written since startup", "",
+            outageLog::getCompressionRatio);
+        Metrics.registerCounter("outage_dropped_bytes",
+            "Unreplayed outage bytes deleted by the DROP_OLDEST quota policy", "", outageLog::getDroppedBytes);
+        Metrics.registerCounter("outage_rejected", "Records refused by the REJECT quota policy", "",
+            outageLog::getRejectedRecords);
+        Metrics.registerCounter("outage_quarantined",
+            "Intact outage records that could not be decoded and were moved to quarantine/", "",
+            outageLog::getQuarantinedRecords);
+        Metrics.registerCounter("outage_corrupt_bytes",
+            "Bytes of corrupt spans in the middle of outage segments, moved to quarantine/ and lost to replay", "",
+            outageLog::getCorruptBytes);
+        Metrics.registerCounter("replay_records", "Records replayed from the outage store", "",
+            engine::getReplayedRecords);
+        Metrics.registerGauge("replay_records_per_second", "Replay throughput of the current or last run", "",
+            engine::getRecordsPerSecond);
+        Metrics.registerGauge("replay_rate_limit",
+            "Replay records per second allowed next to live traffic; 0 is unlimited", "",
+            engine.getGovernor()::getRateLimit);
+        Metrics.registerGauge("replay_remaining_records", "Estimated records left to replay", "",
+            engine::getRemainingRecords);
+        DuplicateFilter duplicates = handler.getDuplicateFilter();
+        Metrics.registerCounter("duplicates_suppressed",
+            "Messages not published because the same facility and control ID already were", "path=\"live\"",
+            duplicates::getLiveHits);
+        Metrics.registerCounter("duplicates_suppressed",
+            "Messages not published because the same facility and control ID already were", "path=\"replay\"",
+            duplicates::getReplayHits);
+        Metrics.registerGauge("duplicate_filter_entries", "Control IDs held by the duplicate filter", "",
+            duplicates::getEntries);
+        PatientIdResolver resolver = handler.getPatientIdResolver();
+        Metrics.registerCounter("patient_id_path_lookups",
+            "Full-parse PID lookups by whether the PID path of the message structure was already learned",
+            "result=\"hit\"", resolver::getHits);
+        Metrics.registerCounter("patient_id_path_lookups",
+            "Full-parse PID lookups by whether the PID path of the message structure was already learned",
+            "result=\"miss\"", resolver::getMisses);
+        Metrics.registerCounter("patient_id_not_found",
+            "Full-parse messages without a PID-3 identifier, keyed as UNKNOWN", "", resolver::getNotFound);
+        Metrics.registerGauge("kafka_circuit_state", "Kafka circuit breaker state: 0 closed, 1 half-open, 2 open",
+            "", () -> breaker.getState() == KafkaCircuitBreaker.State.CLOSED ? 0
+                : breaker.getState() == KafkaCircuitBreaker.State.HALF_OPEN ? 1 : 2);
+        Metrics.registerCounter("kafka_short_circuited", "Messages stored without trying Kafka", "",
+            breaker::getShortCircuited);
+        Metrics.registerGauge("admission_level",
+            "Admission level: 0 admit, 1 throttle, 2 reject, 3 stop", "", () -> admission.getLevel().ordinal());
+        Metrics.registerGauge("admission_limit", "Current adaptive in-flight message limit", "",
+            admission::getLimit);
+        Metrics.registerGauge("admission_in_flight", "Messages admitted and not yet acknowledged", "",
+            admission::getInFlight);
+        Metrics.registerCounter("admission_delayed", "Messages held back by throttling", "",
+            admission::getDelayed);
+        Metrics.registerCounter("admission_rejected", "Messages refused with an AR acknowledgement", "",
+            admission::getRejected);
+        if (lanes != null) {
+            for (int i = 0; i < lanes.getLaneCount(); i++) {
+                int lane = i;
+                Metrics.registerGauge("lane_queue_depth", "Messages waiting per processing lane",
+                    "lane=\"" + lane + "\"", () -> lanes.getQueueDepth(lane));
+                Metrics.registerCounter("lane_completed", "Messages processed per processing lane",
+                    "lane=\"" + lane + "\"", () -> lanes.getCompleted(lane));
+                Metrics.registerCounter("lane_rejected", "Messages refused because their lane was full",
+                    "lane=\"" + lane + "\"", () -> lanes.getRejected(lane));
+            }
+        }
     }
 
     private void initializeSystemState() {
@@ -81,30 +252,40 @@ public class ServerManager {
         kafkaDown = !initialKafkaState;
         
         if (initialKafkaState) {
-            LOG.info("Initial Kafka check: UP - Starting replay routes");
-            startReplayRoutes();
+            LOG.info("Initial Kafka check: UP - Starting replay route");
         } else {
-            LOG.warn("Initial Kafka check: DOWN - Keeping replay routes stopped");
+            LOG.warn("Initial Kafka check: DOWN - Starting replay route, which waits for the circuit breaker");
             kafkaDownStartTime = System.currentTimeMillis();
-            stopReplayRoutes();
         }
+        // Replay stays scheduled through outages: each run asks the breaker, and is its trial
+        // send once Kafka may be back, so recovery does not depend on live traffic
+        startReplayRoute();
     }
 
     private void startKafkaHealthCheck() {
         healthCheckScheduler = Executors.newScheduledThreadPool(1);
         healthCheckScheduler.scheduleAtFixedRate(() -> {
-            try {
-                boolean kafkaAvailable = isKafkaAvailable();
-                
-                if (kafkaAvailable) {
-                    handleKafkaRecovery();
-                } else {
-                    handleKafkaDowntime();
-                }
-            } catch (Exception e) {
-                LOG.error("Health check failed", e);
+            checkKafka();
+            if (lanes != null) {
+                lanes.logStats();
             }
         }, 0, KAFKA_HEALTH_CHECK_INTERVAL, TimeUnit.SECONDS);
+
+        // React to the breaker straight away, off the Kafka callback thread that tripped it
+        breaker.addListener(state -> healthCheckScheduler.execute(this::checkKafka));
+        breaker.start();
+    }
+
+    private void checkKafka() {
+        try {
+            if (isKafkaAvailable()) {
+                handleKafkaRecovery();
+            } else {
+                handleKafkaDowntime();
+            }
+        } catch (Exception e) {
+            LOG.error("Health check failed", e);
+        }
     }
 
     private void handleKafkaRecovery() {
@@ -113,16 +294,6 @@ public class ServerManager {
             String downtimeFormatted = formatDowntime(downtimeSeconds);
             LOG.info("Kafka recovered after {}", downtimeFormatted);
             kafkaDown = false;
-            startReplayRoutes();
-            if (mllpStopped) {
-                try {
-                    camel.getRouteController().startRoute(MLLP_ROUTE_ID);
-                    LOG.info("MLLP route {} resumed accepting connections", MLLP_ROUTE_ID);
-                    mllpStopped = false;
-                } catch (Exception e) {
-                    LOG.error("Failed to restart MLLP route {}: {}", MLLP_ROUTE_ID, e.getMessage());
-                }
-            }
         }
     }
 
@@ -131,41 +302,44 @@ public class ServerManager {
             // First failure detection
             kafkaDown = true;
             kafkaDownStartTime = System.currentTimeMillis();
-            LOG.warn("Kafka connection lost. Stopping replay routes.");
-            stopReplayRoutes();
+            LOG.warn("Kafka connection lost. Replay paused until the circuit breaker closes.");
         } else {
             long downtimeSeconds = (System.currentTimeMillis() - kafkaDownStartTime) / 1000;
             String downtimeFormatted = formatDowntime(downtimeSeconds);
             LOG.warn("Kafka still down ({})", downtimeFormatted);
-            
-            if (downtimeSeconds > KAFKA_MAX_DOWN_TIME && !mllpStopped) {
-                LOG.error("CRITICAL DOWNTIME EXCEEDED {} hours. Refusing MLLP connections.", 
-                    KAFKA_MAX_DOWN_TIME / 3600);
+        }
+    }
+
+    // Refusing connections is the admission controller's last resort, once the outage store has
+    // had no room for a sustained period; it is lifted as soon as the pressure drops.
+    private void handleAdmissionLevel(AdmissionController.Level level) {
+        if (level == AdmissionController.Level.STOP && !mllpStopped) {
+            LOG.error("Outage store exhausted. Refusing MLLP connections.");
+            for (String routeId : mllpRouteIds) {
                 try {
-                    camel.getRouteController().stopRoute(MLLP_ROUTE_ID);
-                    LOG.info("MLLP route {} stopped to refuse connections", MLLP_ROUTE_ID);
-                    mllpStopped = true;
+                    camel.getRouteController().stopRoute(routeId);
+                    LOG.info("MLLP route {} stopped to refuse connections", routeId);
                 } catch (Exception e) {
-                    LOG.error("Failed to stop MLLP route {}: {}", MLLP_ROUTE_ID, e.getMessage());
+                    LOG.error("Failed to stop MLLP route {} for admission {}: {}", routeId, level, e.getMessage());
                 }
             }
+            mllpStopped = true;
+        } else if (level != AdmissionController.Level.STOP && mllpStopped) {
+            for (String routeId : mllpRouteIds) {
+                try {
+                    camel.getRouteController().startRoute(routeId);
+                    LOG.info("MLLP route {} resumed accepting connections", routeId);
+                } catch (Exception e) {
+                    LOG.error("Failed to start MLLP route {} for admission {}: {}", routeId, level, e.getMessage());
+                }
+            }
+            mllpStopped = false;
         }
     }
 
+    // Half-open is not a recovery: its trial send may still fail and reopen the circuit.
     private boolean isKafkaAvailable() {
-        try {
-            String[] brokerParts = BROKER_ADDRESS.split(":");
-            String host = brokerParts[0];
-            int port = Integer.parseInt(brokerParts[1]);
-            
-            try (Socket socket = new Socket(host, port)) {
-                LOG.debug("Kafka health check succeeded to {}:{}", host, port);
-                return true;
-            }
-        } catch (Exception e) {
-            LOG.warn("Kafka health check failed: {}", e.getMessage());
-            return false;
-        }
+        return breaker.isClosed();
     }
     
     private String formatDowntime(long seconds) {
@@ -180,31 +354,15 @@ public class ServerManager {
         }
     }
 
-    private void startReplayRoutes() {
-        LOG.info("Starting {} replay routes", REPLAY_ROUTE_IDS.length);
-        for (String routeId : REPLAY_ROUTE_IDS) {
-            try {
-                if (camel.getRouteController().getRouteStatus(routeId).isStopped()) {
-                    camel.getRouteController().startRoute(routeId);
-                    LOG.debug("Started route: {}", routeId);
-                }
-            } catch (Exception e) {
-                LOG.error("Failed to start route {}: {}", routeId, e.getMessage());
-            }
-        }
-    }
-
-    private void stopReplayRoutes() {
-        LOG.info("Stopping replay routes");
-        for (String routeId : REPLAY_ROUTE_IDS) {
-            try {
-                if (camel.getRouteController().getRouteStatus(routeId).isStarted()) {
-                    camel.getRouteController().stopRoute(routeId);
-                    LOG.debug("Stopped route: {}", routeId);
-                }
-            } catch (Exception e) {
-                LOG.debug("Route {} already stopped: {}", routeId, e.getMessage());
+    private void startReplayRoute() {
+        String routeId = ReplayManager.ROUTE_ID;
+        try {
+            if (camel.getRouteController().getRouteStatus(routeId).isStopped()) {
+                LOG.info("Starting replay route {}", routeId);
+                camel.getRouteController().startRoute(routeId);
             }
+        } catch (Exception e) {
+            LOG.error("Failed to start route {}: {}", routeId, e.getMessage());
         }
     }
 
@@ -215,6 +373,9 @@ public class ServerManager {
             if (healthCheckScheduler != null) {
                 healthCheckScheduler.shutdownNow();
             }
+            if (snapshotScheduler != null) {
+                snapshotScheduler.shutdownNow();
+            }
             
             // Stop Camel context
             if (camel != null) {
@@ -222,6 +383,26 @@ public class ServerManager {
                 LOG.info("Camel context stopped");
             }
             
+            if (admission != null) {
+                admission.close();
+            }
+
+            if (routing != null) {
+                routing.close();
+            }
+
+            if (lanes != null) {
+                lanes.close();
+            }
+
+            if (replayManager != null && replayManager.getEngine() != null) {
+                replayManager.getEngine().close();
+            }
+
+            if (breaker != null) {
+                breaker.close();
+            }
+
             // Close HL7 handler
             if (handler != null) {
                 handler.close();
@@ -0,0 +1,78 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+// Warm-up for FAST_STARTUP. Before the pod reports ready, synthetic ADT^A01 and ORU^R01 messages
+// go through normalization, header extraction, the HAPI parse and ACK generation - everything
+// but publishing - so the first real messages do not pay for class loading and interpretation.
+//
+// The same messages drive the AppCDS training run in the image build (--cds-training). It runs
+// nothing else: no MLLP listener, Kafka producer or outage store, so the build has no side effects
+// and the classes of those paths are loaded from the jar as usual at startup.
+final class StartupWarmup {
+    private static final Logger LOG = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private static final String ADT = "MSH|^~\\&|WARMUP|WARMUP|CAPMLLP|CAPMLLP|20240101120000||ADT^A01^ADT_A01|%s"
+        + "|P|2.4\r"
+        + "EVN|A01|20240101120000\r"
+        + "PID|1||%s^^^WARMUP^MR||WARMUP^PATIENT||19700101|U\r"
+        + "PV1|1|I|WARD^1^1\r";
+    private static final String ORU = "MSH|^~\\&|WARMUP|WARMUP|CAPMLLP|CAPMLLP|20240101120000||ORU^R01^ORU_R01|%s"
+        + "|P|2.4\r"
+        + "PID|1||%s^^^WARMUP^MR||WARMUP^PATIENT||19700101|U\r"
+        + "OBR|1|%s|%s|FBC^Full blood count\r"
+        + "OBX|1|NM|HB^Haemoglobin||140|g/L|115-165|N|||F\r"
+        + "OBX|2|NM|WCC^White cell count||6.5|10*9/L|4.0-11.0|N|||F\r";
+
+    private final HL7Handler handler;
+    private final FrameNormalizer normalizer;
+
+    StartupWarmup(HL7Handler handler, FrameNormalizer normalizer) {
+        this.handler = handler;
+        this.normalizer = normalizer;
+    }
+
+    static byte[] message(int index) {
+        String controlId = "WARMUP" + index;
+        String patientId = Integer.toString(900_000 + index % 1000);
+        String text = index % 2 == 0
+            ? String.format(ADT, controlId, patientId)
+            : String.format(ORU, controlId, patientId, controlId, controlId);
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Runs the messages through the handler without publishing them. Returns the elapsed millis.
+    long run(int messages) {
+        long start = System.nanoTime();
+        int failures = 0;
+        for (int i = 0; i < messages; i++) {
+            byte[] frame = message(i);
+            try {
+                int length = normalizer.normalize(frame, frame.length);
+                handler.rehearse(length == frame.length ? frame : Arrays.copyOf(frame, length));
+            } catch (HL7Exception | RuntimeException e) {
+                if (failures++ == 0) {
+                    LOG.warn("Warm-up message failed: {}", e.getMessage());
+                }
+            }
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        LOG.info("Warm-up processed {} synthetic messages in {} ms ({} failed)", messages, elapsedMs, failures);
+        return elapsedMs;
+    }
+
+    // AppCDS training run for the image build: the warm-up alone, on a handler with no producer
+    // or outage store, then exit so -XX:ArchiveClassesAtExit can write the archive.
+    static void train(int messages) {
+        try (HL7Handler handler = HL7Handler.forRehearsal()) {
+            new StartupWarmup(handler, FrameNormalizer.fromEnvironment()).run(messages);
+        }
+        LOG.info("AppCDS training run complete");
+    }
+}
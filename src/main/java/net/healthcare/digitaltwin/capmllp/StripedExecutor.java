@@ -0,0 +1,164 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs tasks on a fixed set of single-threaded lanes chosen by key. Tasks with the same key
+// always run on the same lane in submission order; different keys run in parallel. Each lane
+// has a bounded queue; a task offered to a full lane is refused straight away rather than
+// holding the submitter until there is room.
+public class StripedExecutor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(StripedExecutor.class);
+
+    private final String name;
+    private final Lane[] lanes;
+
+    public StripedExecutor(String name, int laneCount, int queueDepth) {
+        this(name, laneCount, queueDepth, ThreadSupport.factory(name + "-lane"));
+    }
+
+    public StripedExecutor(String name, int laneCount, int queueDepth, ThreadFactory threadFactory) {
+        if (laneCount < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("Lane count and queue depth must be positive");
+        }
+        this.name = name;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(queueDepth);
+            Thread worker = threadFactory.newThread(lanes[i]::run);
+            worker.start();
+        }
+        LOG.info("Started {} with {} lanes, queue depth {}", name, laneCount, queueDepth);
+    }
+
+    // Runs the task on the key's lane and waits for its result. Throws RejectedExecutionException,
+    // without running the task, when the lane's queue is full.
+    public <T> T execute(String key, Callable<T> task) throws Exception {
+        Lane lane = lanes[laneFor(key)];
+        FutureTask<T> future = new FutureTask<>(task);
+        lane.submit(future);
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Executor closed before the task ran", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    public int laneFor(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getQueueDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    public long getCompleted(int lane) {
+        return lanes[lane].completed.sum();
+    }
+
+    public long getRejected(int lane) {
+        return lanes[lane].rejected.sum();
+    }
+
+    public double getAverageLatencyMillis(int lane) {
+        long completed = lanes[lane].completed.sum();
+        return completed == 0 ? 0 : lanes[lane].latencyNanos.sum() / 1_000_000.0 / completed;
+    }
+
+    public double getMaxLatencyMillis(int lane) {
+        return lanes[lane].maxLatencyNanos.get() / 1_000_000.0;
+    }
+
+    public void logStats() {
+        for (int i = 0; i < lanes.length; i++) {
+            LOG.info("{} lane {}: depth={} completed={} rejected={} avgLatency={}ms maxLatency={}ms", name, i,
+                getQueueDepth(i), getCompleted(i), getRejected(i), String.format("%.2f", getAverageLatencyMillis(i)),
+                String.format("%.2f", getMaxLatencyMillis(i)));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Lane lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    private static final class Lane {
+        private final BlockingQueue<Task> queue;
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private volatile boolean running = true;
+        private volatile Thread worker;
+
+        Lane(int queueDepth) {
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+        }
+
+        void submit(FutureTask<?> future) {
+            if (!running) {
+                throw new IllegalStateException("Executor is closed");
+            }
+            if (!queue.offer(new Task(future, System.nanoTime()))) {
+                rejected.increment();
+                throw new RejectedExecutionException("Lane queue full");
+            }
+        }
+
+        void run() {
+            worker = Thread.currentThread();
+            while (running) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                task.future.run();
+                long latency = System.nanoTime() - task.enqueuedNanos;
+                completed.increment();
+                latencyNanos.add(latency);
+                maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            }
+            // Release anyone still waiting on work that will not run
+            Task pending;
+            while ((pending = queue.poll()) != null) {
+                pending.future.cancel(false);
+            }
+        }
+
+        void stop() {
+            running = false;
+            Thread current = worker;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
+    }
+
+    private record Task(FutureTask<?> future, long enqueuedNanos) {
+    }
+}
@@ -0,0 +1,79 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Chooses between platform and virtual threads for every thread the service creates.
+// VIRTUAL_THREADS=true runs MLLP connections, processing lanes, replay workers, the health
+// server and Camel's own pools on virtual threads. Blocking paths that run on these threads
+// use ReentrantLock rather than synchronized so a waiting thread does not pin its carrier.
+final class ThreadSupport {
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadSupport.class);
+    static final boolean VIRTUAL = EnvConfig.getBoolean("VIRTUAL_THREADS", false);
+
+    private ThreadSupport() {
+    }
+
+    // Must run before the CamelContext is created; Camel reads the flag once.
+    static void configureCamel() {
+        if (VIRTUAL) {
+            System.setProperty("camel.threads.virtual.enabled", "true");
+            LOG.info("Virtual-thread mode enabled");
+        }
+    }
+
+    static ThreadFactory factory(String prefix) {
+        if (VIRTUAL) {
+            return Thread.ofVirtual().name(prefix + "-", 0).factory();
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Pool for tasks that block; virtual mode gives every task its own thread.
+    static ExecutorService newBlockingPool(String prefix, int platformThreads) {
+        if (VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(factory(prefix));
+        }
+        return Executors.newFixedThreadPool(platformThreads, factory(prefix));
+    }
+
+    // camel-mllp runs each accepted connection on a thread of this pool and resets the socket when
+    // the pool is at its maximum size. It does not expose the pool, so it is read from the consumer;
+    // null when that fails.
+    static ThreadPoolExecutor mllpConnectionPool(Consumer consumer) {
+        try {
+            Field field = consumer.getClass().getDeclaredField("consumerExecutor");
+            field.setAccessible(true);
+            Object executor = field.get(consumer);
+            if (executor instanceof ThreadPoolExecutor) {
+                return (ThreadPoolExecutor) executor;
+            }
+            LOG.warn("Unexpected MLLP consumer executor {}", executor == null ? null : executor.getClass().getName());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Cannot reach the MLLP connection pool: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    // camel-mllp builds its connection pool with the JDK default thread factory, so the factory is
+    // swapped before the consumer accepts connections.
+    static void useForMllpConnections(ThreadPoolExecutor pool, String prefix) {
+        if (VIRTUAL) {
+            pool.setThreadFactory(factory(prefix));
+            LOG.info("MLLP connection threads ({}) switched to virtual threads", prefix);
+        }
+    }
+}
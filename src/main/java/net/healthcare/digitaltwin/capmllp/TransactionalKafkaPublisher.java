@@ -0,0 +1,265 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Publishing for KAFKA_PUBLISH_MODE=transactional. A message and its ACK record are written in
+// one Kafka transaction, so consumers reading with isolation.level=read_committed see both or
+// neither. A single committer thread takes whatever pairs are queued when the previous commit
+// finishes (up to KAFKA_TXN_MAX_BATCH) and commits them together, so under load many messages
+// share one commit round-trip. A failed transaction is aborted and every pair in it goes to the
+// outage store. A pair is only reported NOT_PUBLISHED once its transaction can no longer commit;
+// when the outcome of a commit cannot be learned it is IN_DOUBT and is not stored.
+public class TransactionalKafkaPublisher implements KafkaPairPublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionalKafkaPublisher.class);
+
+    private final Properties producerProperties;
+    private final int maxBatch;
+    private final long confirmTimeoutMs;
+    private final BlockingQueue<Pending> queue;
+    private final Thread committer;
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private volatile boolean running = true;
+    private Producer<String, byte[]> producer; // committer thread only
+
+    private static final class Pending {
+        final String topic;
+        final byte[] message;
+        final String ackTopic;
+        final byte[] ack;
+        final String key;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Pending(String topic, byte[] message, String ackTopic, byte[] ack, String key) {
+            this.topic = topic;
+            this.message = message;
+            this.ackTopic = ackTopic;
+            this.ack = ack;
+            this.key = key;
+        }
+    }
+
+    public TransactionalKafkaPublisher(Properties producerProperties) {
+        this.producerProperties = producerProperties;
+        this.maxBatch = Math.max(1, EnvConfig.getInt("KAFKA_TXN_MAX_BATCH", 100));
+        // Room for the commit in progress ahead of this one and for this one's own commit
+        this.confirmTimeoutMs = EnvConfig.getLong("KAFKA_CONFIRM_TIMEOUT_MS",
+            2L * (KafkaConfig.getTxnMaxBlockMs() + KafkaConfig.getDeliveryTimeoutMs()) + 100L);
+        this.queue = new ArrayBlockingQueue<>(Math.max(maxBatch, EnvConfig.getInt("KAFKA_TXN_QUEUE", 1024)));
+        this.committer = ThreadSupport.factory("kafka-txn-committer").newThread(this::run);
+        this.committer.start();
+        LOG.info("Transactional Kafka publishing enabled: transactional.id={}, batch={}, confirm timeout={}ms",
+            producerProperties.get("transactional.id"), maxBatch, confirmTimeoutMs);
+    }
+
+    // CONFIRMED only once the transaction holding the message and its ACK has committed. A pair
+    // that is not confirmed in time is withdrawn if the committer has not taken it yet; otherwise
+    // it is in a transaction that may still commit, and its outcome is waited for.
+    @Override
+    public Result publish(String topic, Object message, String ackTopic, Object ack, String key) {
+        Pending pending = new Pending(topic, bytes(message), ackTopic, ack != null ? bytes(ack) : null, key);
+        try {
+            if (!queue.offer(pending, confirmTimeoutMs, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Transaction queue full - not publishing topic={}", topic);
+                return Result.NOT_PUBLISHED;
+            }
+            return pending.result.get(confirmTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (queue.remove(pending)) {
+                LOG.warn("Kafka transaction not started after {}ms for topic={}", confirmTimeoutMs, topic);
+                return Result.NOT_PUBLISHED;
+            }
+            return awaitOutcome(pending);
+        } catch (ExecutionException e) {
+            LOG.warn("Kafka transactional send failed for topic={}: {}", topic, e.getCause().getMessage());
+            return Result.IN_DOUBT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return queue.remove(pending) ? Result.NOT_PUBLISHED : Result.IN_DOUBT;
+        }
+    }
+
+    // Gives the committer one more confirm timeout to commit or abort the transaction; a pair
+    // still undecided after that is IN_DOUBT, which the caller never stores.
+    private Result awaitOutcome(Pending pending) {
+        LOG.warn("Kafka transaction not confirmed after {}ms for topic={} - waiting for its outcome",
+            confirmTimeoutMs, pending.topic);
+        try {
+            return pending.result.get(confirmTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            LOG.error("Kafka transaction outcome unknown for topic={}", pending.topic);
+            return Result.IN_DOUBT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.IN_DOUBT;
+        }
+    }
+
+    // Same encoding StringSerializer uses, so consumers see the same bytes in every mode.
+    private static byte[] bytes(Object body) {
+        return body instanceof byte[] ? (byte[]) body : body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                Pending first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                // The batch may have got as far as the commit, so its outcome is unknown
+                LOG.error("Kafka transaction committer failed: {}", e.getMessage());
+                complete(batch, Result.IN_DOUBT);
+                closeProducer();
+            } finally {
+                batch.clear();
+            }
+        }
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        complete(remaining, Result.NOT_PUBLISHED);
+        closeProducer();
+    }
+
+    private void commit(List<Pending> batch) {
+        Producer<String, byte[]> current;
+        try {
+            current = producer();
+        } catch (KafkaException e) {
+            LOG.warn("Cannot initialise transactional producer: {}", e.getMessage());
+            closeProducer();
+            complete(batch, Result.NOT_PUBLISHED);
+            return;
+        }
+        // Until the commit is requested the transaction can only be aborted, whether by the
+        // abort below, by the broker after KAFKA_TXN_TIMEOUT_MS or by the next initTransactions
+        boolean commitRequested = false;
+        try {
+            current.beginTransaction();
+            for (Pending pending : batch) {
+                current.send(new ProducerRecord<>(pending.topic, pending.key, pending.message));
+                if (pending.ack != null) {
+                    current.send(new ProducerRecord<>(pending.ackTopic, pending.key, pending.ack));
+                }
+            }
+            commitRequested = true;
+            commitTransaction(current);
+            committed.increment();
+            complete(batch, Result.CONFIRMED);
+            LOG.debug("Committed Kafka transaction with {} messages", batch.size());
+        } catch (ProducerFencedException e) {
+            // A newer producer with this transactional.id has aborted the transaction
+            LOG.warn("Transactional producer fenced, recreating it: {}", e.getMessage());
+            aborted.increment();
+            complete(batch, Result.NOT_PUBLISHED);
+            closeProducer();
+        } catch (OutOfOrderSequenceException | AuthorizationException e) {
+            // Fatal for this producer instance; a new one is created for the next batch
+            LOG.warn("Transactional producer failed, recreating it: {}", e.getMessage());
+            aborted.increment();
+            complete(batch, commitRequested ? Result.IN_DOUBT : Result.NOT_PUBLISHED);
+            closeProducer();
+        } catch (KafkaException e) {
+            LOG.warn("Kafka transaction of {} messages failed: {}", batch.size(), e.getMessage());
+            aborted.increment();
+            try {
+                current.abortTransaction();
+                complete(batch, Result.NOT_PUBLISHED);
+            } catch (KafkaException abortFailure) {
+                LOG.warn("Kafka transaction abort failed, recreating producer: {}", abortFailure.getMessage());
+                complete(batch, commitRequested ? Result.IN_DOUBT : Result.NOT_PUBLISHED);
+                closeProducer();
+            }
+        }
+    }
+
+    // Flushes the sends; a failed send makes the commit throw. A commit that timed out may or may
+    // not have reached the coordinator, and the producer refuses to abort it, so it is retried
+    // once to learn the outcome.
+    private static void commitTransaction(Producer<String, byte[]> current) {
+        try {
+            current.commitTransaction();
+        } catch (org.apache.kafka.common.errors.TimeoutException e) {
+            LOG.warn("Kafka transaction commit timed out, retrying: {}", e.getMessage());
+            current.commitTransaction();
+        }
+    }
+
+    private Producer<String, byte[]> producer() {
+        if (producer == null) {
+            KafkaProducer<String, byte[]> created = new KafkaProducer<>(producerProperties);
+            try {
+                created.initTransactions();
+            } catch (KafkaException e) {
+                created.close(Duration.ZERO);
+                throw e;
+            }
+            producer = created;
+        }
+        return producer;
+    }
+
+    private void closeProducer() {
+        if (producer != null) {
+            try {
+                producer.close(Duration.ofMillis(KafkaConfig.getTxnMaxBlockMs()));
+            } catch (KafkaException e) {
+                LOG.debug("Failed to close transactional producer: {}", e.getMessage());
+            }
+            producer = null;
+        }
+    }
+
+    private static void complete(List<Pending> batch, Result result) {
+        for (Pending pending : batch) {
+            pending.result.complete(result);
+        }
+    }
+
+    public long getCommittedTransactions() {
+        return committed.sum();
+    }
+
+    public long getAbortedTransactions() {
+        return aborted.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        committer.interrupt();
+        try {
+            committer.join(confirmTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
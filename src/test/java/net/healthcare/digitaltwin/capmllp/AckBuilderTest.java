@@ -0,0 +1,151 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.hl7v2.AcknowledgmentCode;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.parser.PipeParser;
+import ca.uhn.hl7v2.util.Terser;
+import ca.uhn.hl7v2.validation.impl.ValidationContextFactory;
+
+// Every ACK from the template must match what generateACK gives for the same request, but for
+// MSH-7 (the time it was built) and MSH-10 (the next control ID).
+class AckBuilderTest {
+    private static final String BODY = "\rPID|1||123^^^CAP^MR||DOE^JOHN\rOBR|1|ORD1|FIL1|FBC\r";
+    private static final String REASON = "Receiver overloaded - retry later";
+    private static final Pattern TIMESTAMP = Pattern.compile("\\d{14}(\\.\\d{1,3})?[+-]\\d{4}");
+
+    private PipeParser parser;
+    private AckBuilder builder;
+
+    @BeforeEach
+    void setUp() {
+        HapiContext hapi = new DefaultHapiContext();
+        hapi.setValidationContext(ValidationContextFactory.noValidation());
+        parser = hapi.getPipeParser();
+        builder = new AckBuilder(parser);
+    }
+
+    // The way the receiver used to answer: parse the MSH segment, generateACK, set MSA-3 for AE.
+    private String hapi(String msh, AcknowledgmentCode code, String text, String reason) throws Exception {
+        Message request = parser.parse(msh);
+        Message response = request.generateACK(code, reason != null ? new HL7Exception(reason) : null);
+        if (text != null) {
+            Terser.set((Segment) response.get("MSA"), 3, 0, 1, 1, text);
+        }
+        return response.encode();
+    }
+
+    // Checks AA, AE and AR for the request against HAPI.
+    private void assertMatchesHapi(String msh) throws Exception {
+        byte[] frame = (msh + BODY).getBytes(StandardCharsets.ISO_8859_1);
+        int mshLength = AckBuilder.mshLength(frame);
+        assertEquals(msh.length(), mshLength);
+        assertAck(hapi(msh, AcknowledgmentCode.AA, null, null), builder.accept(frame, mshLength));
+        assertAck(hapi(msh, AcknowledgmentCode.AE, "Bad message", null),
+            builder.error(frame, mshLength, "Bad message"));
+        assertAck(hapi(msh, AcknowledgmentCode.AR, null, REASON), builder.reject(frame, mshLength, REASON));
+    }
+
+    private static void assertAck(String expected, Acknowledgement actual) {
+        assertEquals(withoutGenerated(expected), withoutGenerated(actual.getText()),
+            () -> "HAPI:     " + expected.replace('\r', '\n')
+                + "\ntemplate: " + actual.getText().replace('\r', '\n'));
+        assertEquals(actual.getText(), new String(actual.getBytes(), StandardCharsets.ISO_8859_1));
+    }
+
+    // MSH-7 (now) and MSH-10 (next ID) differ between any two ACKs
+    private static String withoutGenerated(String ack) {
+        String[] segments = ack.split("\r", -1);
+        String separator = String.valueOf(segments[0].charAt(3));
+        String[] fields = segments[0].split(Pattern.quote(separator), -1);
+        if (fields.length > 9) {
+            fields[6] = "";
+            fields[9] = "";
+        }
+        segments[0] = String.join(separator, fields);
+        return String.join("\r", segments);
+    }
+
+    @Test
+    void acceptErrorAndRejectMatchHapi() throws Exception {
+        assertMatchesHapi("MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01^ORU_R01|MSG1|P|2.4");
+        assertMatchesHapi("MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ADT^A01|MSG2|P|2.4|||AL|NE");
+    }
+
+    @Test
+    void rejectCarriesErrSegment() throws Exception {
+        byte[] frame = "MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|MSG1|P|2.4\r"
+            .getBytes(StandardCharsets.ISO_8859_1);
+        String[] segments = builder.reject(frame, AckBuilder.mshLength(frame), REASON).getText().split("\r");
+        assertEquals("MSA|AR|MSG1|Application internal error", segments[1]);
+        assertEquals("ERR|^^^207&Application internal error&HL70357&&" + REASON, segments[2]);
+    }
+
+    @Test
+    void timestampHasHapiFormat() throws Exception {
+        byte[] frame = "MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|MSG1|P|2.4\r"
+            .getBytes(StandardCharsets.ISO_8859_1);
+        String msh7 = builder.accept(frame, AckBuilder.mshLength(frame)).getText().split("\\|", -1)[6];
+        assertTrue(TIMESTAMP.matcher(msh7).matches(), msh7);
+    }
+
+    @Test
+    void customSeparatorsMatchHapi() throws Exception {
+        assertMatchesHapi("MSH#*!\\@#LAB#CAP#TWIN#DT#20240101120000##ORU*R01#MSG1#P#2.4");
+        assertMatchesHapi("MSH|*~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU*R01|MSG1|P|2.4");
+    }
+
+    @Test
+    void componentsOfCopiedFieldsMatchHapi() throws Exception {
+        assertMatchesHapi("MSH|^~\\&|LAB^X|CAP&Y|TWIN^Z|DT|20240101120000||ORU^R01^ORU_R01|MSG1^A|P^T|2.4^AUS");
+    }
+
+    @Test
+    void missingMshFieldsMatchHapi() throws Exception {
+        // No sending or receiving application or facility
+        assertMatchesHapi("MSH|^~\\&|||||20240101120000||ORU^R01|MSG1|P|2.4");
+        // No control ID or processing ID
+        assertMatchesHapi("MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|||2.4");
+        // No message date
+        assertMatchesHapi("MSH|^~\\&|LAB|CAP|TWIN|DT|||ADT^A01|MSG1|P|2.4");
+    }
+
+    @Test
+    void missingTriggerEventIsAcknowledged() throws Exception {
+        // HAPI cannot parse this request at all; the template answers it with a bare ACK type
+        byte[] frame = "MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU|MSG1|P|2.4\r"
+            .getBytes(StandardCharsets.ISO_8859_1);
+        String[] segments = builder.accept(frame, AckBuilder.mshLength(frame)).getText().split("\r");
+        assertEquals("ACK", segments[0].split("\\|", -1)[8]);
+        assertEquals("MSA|AA|MSG1", segments[1]);
+    }
+
+    @Test
+    void escapeSequencesGoThroughHapi() throws Exception {
+        // HAPI unescapes and re-escapes copied values, which the template does not attempt
+        assertMatchesHapi("MSH|^~\\&|LAB\\T\\1|CAP|TWIN|DT|20240101120000||ORU^R01|MSG1|P|2.4");
+        assertMatchesHapi("MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|MSG\\F\\1|P|2.4");
+    }
+
+    @Test
+    void separatorsInTextGoThroughHapi() throws Exception {
+        String msh = "MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|MSG1|P|2.4";
+        byte[] frame = (msh + BODY).getBytes(StandardCharsets.ISO_8859_1);
+        int mshLength = AckBuilder.mshLength(frame);
+        String text = "PID-3 missing | unparseable ^ value";
+        assertAck(hapi(msh, AcknowledgmentCode.AE, text, null), builder.error(frame, mshLength, text));
+        assertAck(hapi(msh, AcknowledgmentCode.AR, null, text), builder.reject(frame, mshLength, text));
+    }
+}
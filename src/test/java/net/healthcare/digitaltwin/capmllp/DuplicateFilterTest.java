@@ -0,0 +1,76 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import net.healthcare.digitaltwin.capmllp.DuplicateFilter.Reservation;
+import net.healthcare.digitaltwin.capmllp.DuplicateFilter.Source;
+
+class DuplicateFilterTest {
+    private static final long KEY = DuplicateFilter.fingerprint("CAP", "MSG1");
+
+    private static DuplicateFilter filter(int maxEntries) {
+        return new DuplicateFilter(true, maxEntries, 60_000);
+    }
+
+    @Test
+    void copyOfConfirmedMessageIsPublished() {
+        DuplicateFilter filter = filter(100);
+        assertEquals(Reservation.RESERVED, filter.reserve(KEY, Source.LIVE));
+        filter.confirm(KEY);
+        assertEquals(Reservation.PUBLISHED, filter.reserve(KEY, Source.LIVE));
+        assertEquals(Reservation.PUBLISHED, filter.reserve(KEY, Source.REPLAY));
+        assertEquals(1, filter.getLiveHits());
+        assertEquals(1, filter.getReplayHits());
+    }
+
+    @Test
+    void copyOfUnconfirmedMessageIsInFlight() {
+        DuplicateFilter filter = filter(100);
+        assertEquals(Reservation.RESERVED, filter.reserve(KEY, Source.LIVE));
+        assertEquals(Reservation.IN_FLIGHT, filter.reserve(KEY, Source.LIVE));
+        assertEquals(0, filter.getLiveHits());
+    }
+
+    @Test
+    void releasedKeyCanBeReservedAgain() {
+        DuplicateFilter filter = filter(100);
+        filter.reserve(KEY, Source.LIVE);
+        filter.release(KEY);
+        assertEquals(0, filter.getEntries());
+        assertEquals(Reservation.RESERVED, filter.reserve(KEY, Source.LIVE));
+    }
+
+    @Test
+    void keyIsConfirmedInPreviousGeneration() {
+        DuplicateFilter filter = filter(2);
+        filter.reserve(KEY, Source.LIVE);
+        filter.reserve(DuplicateFilter.fingerprint("CAP", "MSG2"), Source.LIVE);
+        // The current generation is full, so this moves KEY into the previous one
+        filter.reserve(DuplicateFilter.fingerprint("CAP", "MSG3"), Source.LIVE);
+        filter.confirm(KEY);
+        assertEquals(Reservation.PUBLISHED, filter.reserve(KEY, Source.LIVE));
+    }
+
+    @Test
+    void probeRunsSurviveRemovalAndConfirm() {
+        DuplicateFilter filter = filter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.reserve(DuplicateFilter.fingerprint("CAP", "MSG" + i), Source.LIVE);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            filter.release(DuplicateFilter.fingerprint("CAP", "MSG" + i));
+        }
+        for (int i = 1; i < 1000; i += 4) {
+            filter.confirm(DuplicateFilter.fingerprint("CAP", "MSG" + i));
+        }
+        assertEquals(500, filter.getEntries());
+        for (int i = 0; i < 1000; i++) {
+            Reservation expected = i % 2 == 0 ? Reservation.RESERVED
+                : i % 4 == 1 ? Reservation.PUBLISHED : Reservation.IN_FLIGHT;
+            assertEquals(expected, filter.reserve(DuplicateFilter.fingerprint("CAP", "MSG" + i), Source.LIVE),
+                "MSG" + i);
+        }
+    }
+}
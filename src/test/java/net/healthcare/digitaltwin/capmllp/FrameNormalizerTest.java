@@ -0,0 +1,143 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class FrameNormalizerTest {
+    private static final String MSH = "MSH|^~\\&|LAB|CAP|TWIN|DT|20240101120000||ORU^R01|MSG1|P|";
+
+    // Runs the normalizer over the frame and returns the rewritten prefix.
+    private static String normalize(String spec, String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.ISO_8859_1);
+        int length = new FrameNormalizer(spec).normalize(bytes, bytes.length);
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void defaultRuleKeepsFirstComponentOfMsh12() {
+        assertEquals(MSH + "2.4|\rPID|1\r", normalize(FrameNormalizer.DEFAULT_RULES, MSH + "2.4^AUS&HL7|\rPID|1\r"));
+    }
+
+    @Test
+    void firstComponentStopsAtRepetition() {
+        assertEquals(MSH + "2.4\r", normalize("MSH-12:first-component", MSH + "2.4~2.5\r"));
+    }
+
+    @Test
+    void firstComponentAsLastFieldWithoutTerminator() {
+        assertEquals(MSH + "2.4", normalize("MSH-12:first-component", MSH + "2.4^AUS"));
+    }
+
+    @Test
+    void firstComponentLeavesSingleComponentAlone() {
+        String frame = MSH + "2.4\rPID|1||123^^^MRN\r";
+        assertEquals(frame, normalize("MSH-12:first-component", frame));
+    }
+
+    @Test
+    void trimStripsLeadingAndTrailingSpaces() {
+        assertEquals("PID|1||123|DOE^JOHN\r", normalize("PID-3:trim", "PID|1||  123  |DOE^JOHN\r"));
+    }
+
+    @Test
+    void trimOfBlankFieldEmptiesIt() {
+        assertEquals("PID|1|||DOE\r", normalize("PID-3:trim", "PID|1||   |DOE\r"));
+    }
+
+    @Test
+    void clearDropsValueButKeepsSeparator() {
+        assertEquals("PID|1||123|||19700101\r", normalize("PID-5:clear", "PID|1||123||DOE^JOHN|19700101\r"));
+    }
+
+    @Test
+    void severalRulesOnOneSegmentAndOnlyMatchingSegments() {
+        String frame = MSH + "2.4^AUS\r"
+            + "PID|1|| 123 ||DOE^JOHN\r"
+            + "NK1|1| DOE |SPOUSE\r"
+            + "PID|2||456||SMITH^JANE\r";
+        String expected = MSH + "2.4\r"
+            + "PID|1||123||\r"
+            + "NK1|1| DOE |SPOUSE\r"
+            + "PID|2||456||\r";
+        assertEquals(expected, normalize("MSH-12:first-component, PID-3:trim, PID-5:clear", frame));
+    }
+
+    @Test
+    void rulesOnSameFieldApplyInOrder() {
+        assertEquals("OBX|1|A\r", normalize("OBX-2:first-component,OBX-2:trim", "OBX|1|  A  ^B\r"));
+    }
+
+    @Test
+    void customSeparatorsFromMsh() {
+        String frame = "MSH#*!\\@#LAB#CAP#TWIN#DT#20240101120000##ORU*R01#MSG1#P#2.4*AUS!2.5\r"
+            + "PID#1##123*X\r";
+        String expected = "MSH#*!\\@#LAB#CAP#TWIN#DT#20240101120000##ORU*R01#MSG1#P#2.4\r"
+            + "PID#1##123\r";
+        assertEquals(expected, normalize("MSH-12:first-component,PID-3:first-component", frame));
+    }
+
+    @Test
+    void lineFeedsAreRewrittenOnlyWhenEnabled() {
+        String frame = MSH + "2.4^AUS\nPID|1|| 123 \n";
+        assertEquals(MSH + "2.4\rPID|1||123\r", normalize("line-endings,MSH-12:first-component,PID-3:trim", frame));
+        // Without the token LF is data, so "PID" is part of MSH-12
+        assertEquals(MSH + "2.4|1\r", normalize("MSH-12:first-component", MSH + "2.4^AUS\nPID|1\r"));
+    }
+
+    @Test
+    void crLfPairsBecomeSingleCarriageReturns() {
+        String frame = MSH + "2.4^AUS\r\nPID|1|| 123 \r\nPV1|1\r\n";
+        assertEquals(MSH + "2.4\rPID|1||123\rPV1|1\r", normalize("line-endings,MSH-12:first-component,PID-3:trim",
+            frame));
+    }
+
+    @Test
+    void shrinkingShiftsLaterSegmentsIntact() {
+        String frame = MSH + "2.4^AUS^LONG&COMPONENT\r"
+            + "PID|1||    123    ||DOE^JOHN^Q|19700101\r"
+            + "OBX|1|NM|HB||140|g/L\r";
+        String expected = MSH + "2.4\r"
+            + "PID|1||123|||19700101\r"
+            + "OBX|1|NM|HB||140|g/L\r";
+        byte[] bytes = frame.getBytes(StandardCharsets.ISO_8859_1);
+        int length = new FrameNormalizer("MSH-12:first-component,PID-3:trim,PID-5:clear")
+            .normalize(bytes, bytes.length);
+        assertEquals(expected.length(), length);
+        assertEquals(expected, new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void normalizesOnlyTheGivenLength() {
+        byte[] bytes = (MSH + "2.4^AUS\rTRAILING GARBAGE").getBytes(StandardCharsets.ISO_8859_1);
+        int length = new FrameNormalizer("MSH-12:first-component").normalize(bytes, (MSH + "2.4^AUS\r").length());
+        assertEquals(MSH + "2.4\r", new String(bytes, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void emptySpecLeavesFrameUnchanged() {
+        String frame = MSH + "2.4^AUS\r\nPID|1|| 123 \n";
+        assertEquals(frame, normalize("", frame));
+        assertEquals(frame, normalize(" , ", frame));
+    }
+
+    @Test
+    void rulesAreCaseInsensitive() {
+        assertEquals("PID|1||123\r", normalize("pid-3:TRIM, LINE-ENDINGS", "PID|1|| 123 \n"));
+    }
+
+    @Test
+    void invalidRulesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("MSH12:trim"));
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("MS-3:trim"));
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("PID-3"));
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("PID-3:upper"));
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("PID-x:trim"));
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("PID-0:trim"));
+        // MSH-1 and MSH-2 are the separators themselves
+        assertThrows(IllegalArgumentException.class, () -> new FrameNormalizer("MSH-2:clear"));
+    }
+}
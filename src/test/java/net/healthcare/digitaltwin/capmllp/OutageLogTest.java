@@ -0,0 +1,334 @@
+package net.healthcare.digitaltwin.capmllp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutageLogTest {
+    private static final String TOPIC = "hl7-oru";
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Every record of the segment from the offset on, failing on an undecodable one.
+    private static List<OutageLog.Record> readAll(OutageLog log, Path segment, long from) throws IOException {
+        List<OutageLog.Record> records = new ArrayList<>();
+        try (OutageLog.SegmentReader reader = log.openReader(segment, from)) {
+            for (OutageLog.Record record = reader.next(); record != null; record = reader.next()) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static void write(Path segment, byte[] data) throws IOException {
+        Files.write(segment, data, StandardOpenOption.APPEND);
+    }
+
+    // An intact record (length and CRC32C match) whose flags name codec 7, which does not exist.
+    private static byte[] undecodableRecord() {
+        byte[] topic = bytes(TOPIC);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 2 + topic.length + 2 + 4 + 16);
+        payload.put((byte) 7).putLong(System.currentTimeMillis());
+        payload.putShort((short) topic.length).put(topic).putShort((short) 0);
+        payload.putInt(64).put(new byte[16]);
+        CRC32C crc = new CRC32C();
+        crc.update(payload.array());
+        return ByteBuffer.allocate(8 + payload.capacity())
+            .putInt(payload.capacity()).putInt((int) crc.getValue()).put(payload.array()).array();
+    }
+
+    @Test
+    void appendedRecordsReadBackAfterSeal() throws IOException {
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, true)) {
+            log.append(TOPIC, "MSG1", bytes("MSH|first"), bytes("MSH|ack1"));
+            log.append(TOPIC, null, bytes("MSH|second"), null);
+            assertTrue(log.sealedSegments().isEmpty());
+            log.seal();
+
+            List<Path> sealed = log.sealedSegments();
+            assertEquals(1, sealed.size());
+            List<OutageLog.Record> records = readAll(log, sealed.get(0), 0);
+            assertEquals(2, records.size());
+            assertEquals(TOPIC, records.get(0).getTopic());
+            assertEquals("MSG1", records.get(0).getKey());
+            assertArrayEquals(bytes("MSH|first"), records.get(0).getMessage());
+            assertArrayEquals(bytes("MSH|ack1"), records.get(0).getAck());
+            assertNull(records.get(1).getKey());
+            assertNull(records.get(1).getAck());
+            assertEquals(Files.size(sealed.get(0)), records.get(1).getEndOffset());
+            assertEquals(Files.size(sealed.get(0)), log.getUsedBytes());
+        }
+    }
+
+    @Test
+    void tornTailIsTrimmedOnRecovery() throws IOException {
+        Path segment;
+        long firstEnd;
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            log.append(TOPIC, "MSG1", bytes("MSH|first"), bytes("MSH|ack1"));
+            log.append(TOPIC, "MSG2", bytes("MSH|second"), bytes("MSH|ack2"));
+            segment = log.listSegments().get(0);
+            firstEnd = readAll(log, segment, 0).get(0).getEndOffset();
+        }
+        // A crash in the middle of the second record
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 5);
+        }
+
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            assertEquals(firstEnd, Files.size(segment));
+            assertEquals(firstEnd, log.getUsedBytes());
+            List<OutageLog.Record> records = readAll(log, segment, 0);
+            assertEquals(1, records.size());
+            assertEquals("MSG1", records.get(0).getKey());
+            // New records go to a new segment after the recovered one
+            log.append(TOPIC, "MSG3", bytes("MSH|third"), null);
+            log.seal();
+            assertEquals(2, log.sealedSegments().size());
+        }
+    }
+
+    @Test
+    void failedChecksumIsTrimmedOnRecovery() throws IOException {
+        Path segment;
+        long firstEnd;
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            log.append(TOPIC, "MSG1", bytes("MSH|first"), null);
+            log.append(TOPIC, "MSG2", bytes("MSH|second"), null);
+            segment = log.listSegments().get(0);
+            firstEnd = readAll(log, segment, 0).get(0).getEndOffset();
+        }
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 1] ^= 0x55;
+        Files.write(segment, data);
+
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            assertEquals(firstEnd, Files.size(segment));
+            assertEquals(1, readAll(log, segment, 0).size());
+        }
+    }
+
+    @Test
+    void undecodableRecordIsKeptOnRecoveryAndQuarantinedOnce() throws IOException {
+        Path segment;
+        byte[] good;
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            log.append(TOPIC, "MSG1", bytes("MSH|first"), bytes("MSH|ack1"));
+            segment = log.listSegments().get(0);
+            good = Files.readAllBytes(segment);
+        }
+        byte[] bad = undecodableRecord();
+        write(segment, bad);
+        write(segment, good);
+        write(segment, Arrays.copyOf(good, good.length / 2)); // torn tail
+        long intactEnd = 2L * good.length + bad.length;
+
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            // Only the torn tail is cut, not the undecodable record or what follows it
+            assertEquals(intactEnd, Files.size(segment));
+            try (OutageLog.SegmentReader reader = log.openReader(segment, 0)) {
+                assertEquals("MSG1", reader.next().getKey());
+                OutageLog.UndecodableRecordException e =
+                    assertThrows(OutageLog.UndecodableRecordException.class, reader::next);
+                assertEquals(good.length, e.getOffset());
+                assertEquals(good.length + bad.length, e.getEndOffset());
+                // The reader goes on past it
+                OutageLog.Record after = reader.next();
+                assertEquals("MSG1", after.getKey());
+                assertEquals(intactEnd, after.getEndOffset());
+                assertNull(reader.next());
+
+                log.quarantine(segment, e);
+                log.quarantine(segment, e);
+                assertEquals(1, log.getQuarantinedRecords());
+                Path quarantined = dir.resolve("quarantine").resolve(segment.getFileName() + "@" + good.length);
+                assertArrayEquals(bad, Files.readAllBytes(quarantined));
+            }
+        }
+    }
+
+    // Flips a byte inside the payload of the record that ends at the offset.
+    private static void corruptRecordEndingAt(Path segment, long end) throws IOException {
+        byte[] data = Files.readAllBytes(segment);
+        data[(int) end - 2] ^= 0x55;
+        Files.write(segment, data);
+    }
+
+    // Keys of the segment's records, skipping corrupt spans the way replay does.
+    private static List<String> keysSkippingCorrupt(OutageLog log, Path segment) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (OutageLog.SegmentReader reader = log.openReader(segment, 0)) {
+            while (true) {
+                OutageLog.Record record = reader.next();
+                if (record != null) {
+                    keys.add(record.getKey());
+                } else if (reader.atEnd()) {
+                    return keys;
+                } else {
+                    log.skipCorrupt(segment, reader);
+                }
+            }
+        }
+    }
+
+    @Test
+    void corruptRecordInSealedSegmentIsQuarantinedAndLaterRecordsSurvive() throws IOException {
+        Path segment;
+        List<OutageLog.Record> written;
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            for (int i = 1; i <= 4; i++) {
+                log.append(TOPIC, "MSG" + i, bytes("MSH|" + i), bytes("MSH|ack" + i));
+            }
+            log.seal();
+            // A newer segment, so recovery leaves the corrupt one alone
+            log.append(TOPIC, "MSG5", bytes("MSH|5"), null);
+            segment = log.sealedSegments().get(0);
+            written = readAll(log, segment, 0);
+        }
+        long start = written.get(0).getEndOffset();
+        long end = written.get(1).getEndOffset();
+        byte[] original = Arrays.copyOfRange(Files.readAllBytes(segment), (int) start, (int) end);
+        corruptRecordEndingAt(segment, end);
+
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            try (OutageLog.SegmentReader reader = log.openReader(segment, 0)) {
+                assertEquals("MSG1", reader.next().getKey());
+                assertNull(reader.next());
+                assertFalse(reader.atEnd());
+                log.skipCorrupt(segment, reader);
+                assertEquals(end, reader.position());
+                assertEquals("MSG3", reader.next().getKey());
+            }
+            assertEquals(Arrays.asList("MSG1", "MSG3", "MSG4"), keysSkippingCorrupt(log, segment));
+            assertEquals(end - start, log.getCorruptBytes());
+            Path quarantined = dir.resolve("quarantine").resolve(segment.getFileName() + "@" + start);
+            byte[] kept = Files.readAllBytes(quarantined);
+            assertEquals(original.length, kept.length);
+            assertFalse(Arrays.equals(original, kept));
+        }
+    }
+
+    @Test
+    void recoveryKeepsRecordsAfterCorruptSpanInLastSegment() throws IOException {
+        Path segment;
+        long size;
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            for (int i = 1; i <= 3; i++) {
+                log.append(TOPIC, "MSG" + i, bytes("MSH|" + i), null);
+            }
+            segment = log.listSegments().get(0);
+            corruptRecordEndingAt(segment, readAll(log, segment, 0).get(1).getEndOffset());
+            size = Files.size(segment);
+        }
+
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            assertEquals(size, Files.size(segment));
+            assertEquals(Arrays.asList("MSG1", "MSG3"), keysSkippingCorrupt(log, segment));
+        }
+    }
+
+    @Test
+    void checkpointSkipsConsumedRecordsAndConsumeDeletesSegment() throws IOException {
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            for (int i = 1; i <= 3; i++) {
+                log.append(TOPIC, "MSG" + i, bytes("MSH|" + i), null);
+            }
+            log.seal();
+            Path segment = log.sealedSegments().get(0);
+            assertEquals(0, log.readCheckpoint(segment));
+            assertEquals(Files.size(segment), log.getBacklogBytes());
+
+            long firstEnd = readAll(log, segment, 0).get(0).getEndOffset();
+            log.writeCheckpoint(segment, firstEnd);
+            assertEquals(firstEnd, log.readCheckpoint(segment));
+            assertEquals(Files.size(segment) - firstEnd, log.getBacklogBytes());
+            List<OutageLog.Record> rest = readAll(log, segment, log.readCheckpoint(segment));
+            assertEquals(2, rest.size());
+            assertEquals("MSG2", rest.get(0).getKey());
+
+            try (FileLease lease = log.claim(segment)) {
+                assertTrue(lease != null);
+                log.markConsumed(segment);
+            }
+            assertFalse(Files.exists(segment));
+            assertFalse(Files.exists(segment.resolveSibling(segment.getFileName() + ".ckpt")));
+            assertTrue(log.listSegments().isEmpty());
+            assertEquals(0, log.getUsedBytes());
+            assertEquals(0, log.getBacklogBytes());
+        }
+    }
+
+    @Test
+    void segmentsRollAtTheConfiguredSize() throws IOException {
+        for (boolean mmap : new boolean[] {false, true}) {
+            Path directory = dir.resolve(mmap ? "mmap" : "channel");
+            try (OutageLog log = new OutageLog(directory, 256, mmap, false)) {
+                for (int i = 0; i < 10; i++) {
+                    log.append(TOPIC, "MSG" + i, bytes("MSH|" + "x".repeat(60) + i), null);
+                }
+                List<Path> sealed = log.sealedSegments();
+                assertTrue(sealed.size() > 1, "segments: " + sealed.size());
+                assertEquals(sealed.size() + 1, log.listSegments().size());
+                log.seal();
+
+                List<String> keys = new ArrayList<>();
+                long total = 0;
+                for (Path segment : log.sealedSegments()) {
+                    // Sealed mmap segments are cut to their data
+                    assertTrue(Files.size(segment) <= 256, segment + " is " + Files.size(segment) + " bytes");
+                    total += Files.size(segment);
+                    for (OutageLog.Record record : readAll(log, segment, 0)) {
+                        keys.add(record.getKey());
+                    }
+                }
+                assertEquals(10, keys.size());
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("MSG" + i, keys.get(i));
+                }
+                assertEquals(total, log.getUsedBytes());
+            }
+        }
+    }
+
+    @Test
+    void sealIfCaughtUpWaitsForSealedSegments() throws IOException {
+        try (OutageLog log = new OutageLog(dir, 1 << 20, false, false)) {
+            assertFalse(log.sealIfCaughtUp());
+            log.append(TOPIC, "MSG1", bytes("MSH|1"), null);
+            log.seal();
+            log.append(TOPIC, "MSG2", bytes("MSH|2"), null);
+            assertFalse(log.sealIfCaughtUp());
+
+            Path first = log.sealedSegments().get(0);
+            try (FileLease lease = log.claim(first)) {
+                log.markConsumed(first);
+            }
+            assertTrue(log.sealIfCaughtUp());
+            assertEquals(1, log.sealedSegments().size());
+            assertEquals("MSG2", readAll(log, log.sealedSegments().get(0), 0).get(0).getKey());
+        }
+    }
+}
@@ -23,4 +23,11 @@ echo ""
 echo "Starting Capion Pathology MLLP Adapter::"
 echo ""
 
-exec java -Dlogback.configurationFile=/app/logback.xml -jar /app/cap-pathology-mllp-1.0.0-SNAPSHOT.jar
\ No newline at end of file
+JAVA_OPTS=""
+CDS_ARCHIVE="/app/cap-pathology-mllp.jsa"
+if [[ "${FAST_STARTUP}" == "true" && -f "$CDS_ARCHIVE" ]]; then
+    echo "Using class data sharing archive $CDS_ARCHIVE"
+    JAVA_OPTS="-XX:SharedArchiveFile=$CDS_ARCHIVE -Xshare:auto"
+fi
+
+exec java $JAVA_OPTS -Dlogback.configurationFile=/app/logback.xml -jar /app/cap-pathology-mllp-1.0.0-SNAPSHOT.jar
\ No newline at end of file